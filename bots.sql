@@ -1,3 +1,11 @@
+--
+-- Original (version 0) schema.
+--
+-- The bots upgrade this in place at startup, see SchemaMigrations.java
+-- for the current schema. Do not add schema changes here, add a
+-- migration instead.
+--
+
 CREATE TABLE bot_replies 
 (
     bot_name    varchar(128),
@@ -42,6 +42,24 @@ public abstract class AbstractCasinoBot extends BaseBot  {
     protected static DateFormat DATE_FORMAT =
                             new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
+    //
+    // Number of our latest comments searched by postGameComment().
+    //
+    private static final int NAME_LOOKUP_COMMENTS = 5;
+
+    //
+    // Times to try sending a reply to a settled game before giving up.
+    //
+    private static final int MAX_SEND_ATTEMPTS = 10;
+
+    //
+    // Replies to settled games which could not be sent, oldest first,
+    // retried by sendUnsentReplies(). Only used from the bot's message
+    // loop. Kept in memory only, so each is also logged in full.
+    //
+    private final List<UnsentReply> _unsentReplies = 
+                                            new LinkedList<UnsentReply>();
+
 
     /**
      *
@@ -50,6 +68,12 @@ public abstract class AbstractCasinoBot extends BaseBot  {
      */
     protected void initProps(Properties props) {
 
+        //
+        // Storage backend and database settings, before anything 
+        // touches the db.
+        //
+        PersistenceUtils.configure(props);
+
         //
         // Get user info from properties file
         //
@@ -94,6 +118,11 @@ public abstract class AbstractCasinoBot extends BaseBot  {
                 _ignoreUsers.add(ignore);
             }
         }
+
+        //
+        // Load the in memory filter of things we have replied to.
+        //
+        PersistenceUtils.initReplyFilter(getName());
     }
 
     /**
@@ -161,6 +190,174 @@ public abstract class AbstractCasinoBot extends BaseBot  {
 
         return true;
     }
+
+    /**
+     *
+     * Post a game comment and return its thing name, so its session can
+     * be stored under it.
+     *
+     * jReddit's Comments.comment() does not return the comment it
+     * posted, so once it is posted we look up our latest few comments,
+     * and take the name of the one whose body is the text we sent. That
+     * is one more request than just posting, so only use this when the
+     * name is needed.
+     *
+     * @return The name of the posted comment, or null if it could not
+     *         be found, e.g. if we posted many others since.
+     *
+     * @throws IOException if the comment could not be posted. Errors
+     *         looking it up afterwards are only logged, as it is posted.
+     */
+    protected String postGameComment(Thing thing, String text) 
+                                                    throws IOException {
+
+        Comments.comment(_user, thing, text);
+
+        try {
+
+            //
+            // Other bots or threads on this account may have posted
+            // since, so look past the latest. Game comments hold the
+            // cards dealt, so the text is as good as unique.
+            //
+            List<Comment> comments = Comments.getUserComments(
+                                            _user,
+                                            _user.getUsername(),
+                                            NAME_LOOKUP_COMMENTS );
+            for(Comment comment: comments) {
+                String body = comment.getBody();
+
+                //
+                // Reddit gives the body back with &, < and > escaped,
+                // and without trailing whitespace.
+                //
+                if( body != null && 
+                    unescape(body).trim().equals(text.trim()) ) {
+                    return comment.getName();
+                }
+            }
+
+            log("Could not find the comment posted to " + thing.getName());
+
+        } catch(IOException ioe) {
+            log("Could not look up the comment posted to " + 
+                thing.getName() + " (" + ioe + ")");
+        }
+
+        return null;
+    }
+
+    private static String unescape(String body) {
+        return body.replace("&lt;", "<")
+                   .replace("&gt;", ">")
+                   .replace("&amp;", "&");
+    }
+
+    /**
+     *
+     * Keep a reply which could not be sent, to retry from
+     * sendUnsentReplies(). For games which are already settled, where
+     * playing the message again is not an option.
+     *
+     * @param thing The thing to reply to.
+     * @param text  The full text of the reply.
+     * @param cause The error sending it.
+     *
+     */
+    protected void addUnsentReply(Thing thing, String text, IOException cause) {
+        log("SEVERE could not send reply to settled game " + 
+            thing.getName() + " (" + cause + "), will retry. Reply:\n" + 
+            text);
+        _unsentReplies.add(new UnsentReply(thing, text));
+    }
+
+    /**
+     *
+     * Retry the replies kept by addUnsentReply(), oldest first, until
+     * one fails.
+     *
+     * @throws RateLimitException if reddit wants us to slow down, the
+     *         reply is kept and retried after.
+     */
+    protected void sendUnsentReplies() throws IOException {
+
+        while(!_unsentReplies.isEmpty()) {
+
+            UnsentReply reply = _unsentReplies.get(0);
+            String name = reply.getThing().getName();
+
+            try {
+
+                Comments.comment(_user, reply.getThing(), reply.getText());
+                log("Sent reply to settled game " + name + " after " + 
+                    (reply.getAttempts() + 1) + " attempt(s).");
+
+            } catch(DeletedCommentException dce) {
+
+                log("Dropping reply to deleted comment " + name);
+
+            } catch(BannedUserException bue) {
+
+                log("SEVERE dropping reply to settled game " + name + 
+                    ", banned from " + reply.getThing().getSubreddit() + 
+                    ". Reply:\n" + reply.getText());
+
+            } catch(RateLimitException rle) {
+
+                throw rle;
+
+            } catch(IOException ioe) {
+
+                if(reply.addAttempt() < MAX_SEND_ATTEMPTS) {
+                    log("ERROR resending reply to settled game " + name + 
+                        " (" + ioe + ")");
+                    return;
+                }
+
+                log("SEVERE giving up on reply to settled game " + name + 
+                    " after " + reply.getAttempts() + " attempts. Reply:\n" + 
+                    reply.getText());
+            }
+
+            _unsentReplies.remove(0);
+        }
+    }
+
+    /**
+     *
+     * A reply waiting to be sent again.
+     *
+     */
+    private static class UnsentReply {
+
+        private final Thing _thing;
+        private final String _text;
+        private int _attempts = 1;
+
+        UnsentReply(Thing thing, String text) {
+            _thing = thing;
+            _text = text;
+        }
+
+        Thing getThing() {
+            return _thing;
+        }
+
+        String getText() {
+            return _text;
+        }
+
+        int getAttempts() {
+            return _attempts;
+        }
+
+        /**
+         * @return The number of attempts so far.
+         */
+        int addAttempt() {
+            return ++_attempts;
+        }
+    }
     
 }
 
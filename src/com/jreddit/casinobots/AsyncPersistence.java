@@ -0,0 +1,270 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.almworks.sqlite4java.*;
+
+/**
+ *
+ * Asynchronous variant of the PersistenceUtils API.
+ *
+ * Operations are queued to a single persistence thread, which owns its
+ * own sqlite connection. Whatever has queued up while it was busy is run
+ * as one batch inside one transaction, so a burst of bank changes costs
+ * one commit. Each call returns a CompletableFuture which completes once
+ * the batch containing it has committed, or completes exceptionally if
+ * the batch was rolled back, in which case none of its changes applied.
+ *
+ */
+public class AsyncPersistence implements Runnable {
+
+    //
+    // Most operations run in one transaction.
+    //
+    private static final int MAX_BATCH = 64;
+
+    private static final AsyncPersistence INSTANCE = new AsyncPersistence();
+
+    /**
+     *
+     * A queued operation.
+     *
+     */
+    private static abstract class Operation<T> {
+
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        T result;
+
+        abstract T execute();
+    }
+
+    private final BlockingQueue<Operation<?>> _queue =
+                                new LinkedBlockingQueue<Operation<?>>();
+
+    private Thread _thread;
+
+    private AsyncPersistence() { }
+
+    /**
+     * @see PersistenceUtils#isBotReplied(String, String)
+     */
+    public static CompletableFuture<Boolean> isBotReplied(
+                                                final String botName,
+                                                final String thingName) {
+        return submit(new Operation<Boolean>() {
+            Boolean execute() {
+                return Boolean.valueOf(
+                    PersistenceUtils.isBotReplied(botName, thingName));
+            }
+        });
+    }
+
+    /**
+     * @see PersistenceUtils#setBotReplied(String, String)
+     */
+    public static CompletableFuture<Void> setBotReplied(
+                                                final String botName,
+                                                final String thingName) {
+        return submit(new Operation<Void>() {
+            Void execute() {
+                PersistenceUtils.setBotReplied(botName, thingName);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @see PersistenceUtils#getBankBalance(String)
+     */
+    public static CompletableFuture<Integer> getBankBalance(
+                                                final String player) {
+        return submit(new Operation<Integer>() {
+            Integer execute() {
+                return Integer.valueOf(
+                    PersistenceUtils.getBankBalance(player));
+            }
+        });
+    }
+
+    /**
+     * @see PersistenceUtils#creditBankBalance(String, int)
+     */
+    public static CompletableFuture<Integer> creditBankBalance(
+                                                final String player,
+                                                final int amount) {
+        return submit(new Operation<Integer>() {
+            Integer execute() {
+                return Integer.valueOf(
+                    PersistenceUtils.creditBankBalance(player, amount));
+            }
+        });
+    }
+
+    /**
+     * @see PersistenceUtils#debitBankBalance(String, int)
+     */
+    public static CompletableFuture<Integer> debitBankBalance(
+                                                final String player,
+                                                final int amount) {
+        return submit(new Operation<Integer>() {
+            Integer execute() {
+                return Integer.valueOf(
+                    PersistenceUtils.debitBankBalance(player, amount));
+            }
+        });
+    }
+
+    /**
+     * @see PersistenceUtils#upsertBankBalance(String, int)
+     */
+    public static CompletableFuture<Integer> upsertBankBalance(
+                                                final String player,
+                                                final int balance) {
+        return submit(new Operation<Integer>() {
+            Integer execute() {
+                return Integer.valueOf(
+                    PersistenceUtils.upsertBankBalance(player, balance));
+            }
+        });
+    }
+
+    /**
+     * @see PersistenceUtils#getBankLeaders(int)
+     */
+    public static CompletableFuture<AccountInfo[]> getBankLeaders(
+                                                final int limit) {
+        return submit(new Operation<AccountInfo[]>() {
+            AccountInfo[] execute() {
+                return PersistenceUtils.getBankLeaders(limit);
+            }
+        });
+    }
+
+    /**
+     *
+     * Wait until every operation queued so far has completed.
+     *
+     */
+    public static void flush() {
+        synchronized(INSTANCE) {
+            if(INSTANCE._thread == null) {
+                return;
+            }
+        }
+
+        CompletableFuture<Void> barrier = submit(new Operation<Void>() {
+            Void execute() {
+                return null;
+            }
+        });
+
+        try {
+            barrier.get();
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch(ExecutionException ee) {
+            // The barrier itself does nothing, nothing to report.
+        }
+    }
+
+    private static <T> CompletableFuture<T> submit(Operation<T> op) {
+        synchronized(INSTANCE) {
+            if(INSTANCE._thread == null) {
+                INSTANCE._thread = new Thread(INSTANCE, "AsyncPersistence");
+                INSTANCE._thread.setDaemon(true);
+                INSTANCE._thread.start();
+            }
+        }
+        INSTANCE._queue.add(op);
+        return op.future;
+    }
+
+    /**
+     *
+     * Persistence thread loop.
+     *
+     */
+    public void run() {
+
+        List<Operation<?>> batch = new ArrayList<Operation<?>>();
+
+        while(true) {
+
+            try {
+                batch.add(_queue.take());
+            } catch(InterruptedException ie) {
+                return;
+            }
+            _queue.drainTo(batch, MAX_BATCH - 1);
+
+            execute(batch);
+            batch.clear();
+        }
+    }
+
+    /**
+     *
+     * Run a batch of operations in one transaction and complete their
+     * futures.
+     *
+     */
+    @SuppressWarnings("unchecked")
+    private void execute(List<Operation<?>> batch) {
+
+        if(!PersistenceUtils.isSQLiteBackend()) {
+            //
+            // No transactions to group the batch into.
+            //
+            for(Operation<?> op: batch) {
+                try {
+                    ((Operation<Object>)op).future.complete(op.execute());
+                } catch(RuntimeException re) {
+                    re.printStackTrace();
+                    op.future.completeExceptionally(re);
+                }
+            }
+            return;
+        }
+
+        try {
+
+            SQLiteDatabase.begin();
+            boolean committed = false;
+            try {
+
+                for(Operation<?> op: batch) {
+                    ((Operation<Object>)op).result = op.execute();
+                }
+
+                SQLiteDatabase.commit();
+                committed = true;
+
+            } finally {
+                if(!committed) {
+                    SQLiteDatabase.rollback();
+                }
+            }
+
+            for(Operation<?> op: batch) {
+                ((Operation<Object>)op).future.complete(op.result);
+            }
+
+        } catch(SQLiteException se) {
+
+            SQLiteDatabase.handleError(se);
+            for(Operation<?> op: batch) {
+                op.future.completeExceptionally(se);
+            }
+
+        } catch(RuntimeException re) {
+
+            re.printStackTrace();
+            for(Operation<?> op: batch) {
+                op.future.completeExceptionally(re);
+            }
+        }
+    }
+
+}
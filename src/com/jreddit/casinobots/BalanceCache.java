@@ -0,0 +1,105 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+
+/**
+ *
+ * Bounded LRU cache of bank balances.
+ *
+ * Shared by every bot in the JVM through PersistenceUtils, which writes
+ * each committed balance change through to it. The db stays the source
+ * of truth: a miss is read from the db and then cached with
+ * putIfUnchanged(), which refuses the value if any write happened while
+ * it was being read, so a slow reader can never cache a stale balance
+ * over a newer one.
+ *
+ */
+public class BalanceCache {
+
+    private final int _capacity;
+
+    private final LinkedHashMap<String, Integer> _balances;
+
+    //
+    // Incremented on every write, see putIfUnchanged().
+    //
+    private long _stamp = 0;
+
+    private long _hits      = 0;
+    private long _misses    = 0;
+
+    public BalanceCache(int capacity) {
+        _capacity = capacity;
+        _balances = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(
+                                    Map.Entry<String, Integer> eldest) {
+                return size() > _capacity;
+            }
+        };
+    }
+
+    /**
+     *
+     * Return the cached balance, or -1 on a miss.
+     *
+     */
+    public synchronized int get(String player) {
+        Integer bal = _balances.get(player);
+        if(bal == null) {
+            _misses++;
+            return -1;
+        }
+        _hits++;
+        return bal.intValue();
+    }
+
+    /**
+     *
+     * Write a committed balance through to the cache.
+     *
+     */
+    public synchronized void put(String player, int balance) {
+        _stamp++;
+        _balances.put(player, Integer.valueOf(balance));
+    }
+
+    /**
+     *
+     * Return the current write stamp. Take this before reading a
+     * balance from the db, and pass it to putIfUnchanged().
+     *
+     */
+    public synchronized long getStamp() {
+        return _stamp;
+    }
+
+    /**
+     *
+     * Cache a balance read from the db, unless a write has happened
+     * since the stamp was taken.
+     *
+     */
+    public synchronized void putIfUnchanged(String player,
+                                            int balance,
+                                            long stamp) {
+        if(stamp == _stamp) {
+            _balances.put(player, Integer.valueOf(balance));
+        }
+    }
+
+    /**
+     *
+     * One line summary of the cache stats, for logging.
+     *
+     */
+    public synchronized String getStats() {
+        long total = _hits + _misses;
+        return  "size " + _balances.size() + "/" + _capacity +
+                ", hits " + _hits +
+                ", misses " + _misses +
+                (total > 0 ?
+                    String.format(", hit rate %.1f%%", (100.0 * _hits) / total)
+                    : "");
+    }
+
+}
@@ -0,0 +1,146 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+
+/**
+ *
+ * Map of player name to balance, for bulk balance lookups.
+ *
+ * Open addressing with linear probing over parallel arrays, so values
+ * are plain ints and a lookup allocates nothing. Like getBankBalance(),
+ * get() returns -1 for a player who is not in the map.
+ *
+ */
+public class BalanceMap {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private String[] _keys;
+    private int[] _values;
+    private int _size = 0;
+
+    public BalanceMap() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     *
+     * @param expected  Number of players expected, to size the table.
+     *
+     */
+    public BalanceMap(int expected) {
+        int capacity = MIN_CAPACITY;
+        while(capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        _keys = new String[capacity];
+        _values = new int[capacity];
+    }
+
+    /**
+     *
+     * @return The player's balance, or -1 if the player is not in the map.
+     */
+    public int get(String player) {
+        int i = indexOf(player);
+        return _keys[i] == null ? -1 : _values[i];
+    }
+
+    public boolean containsKey(String player) {
+        return _keys[indexOf(player)] != null;
+    }
+
+    public void put(String player, int balance) {
+        int i = indexOf(player);
+        if(_keys[i] == null) {
+            _keys[i] = player;
+            _size++;
+            if(_size * 2 > _keys.length) {
+                _values[i] = balance;
+                grow();
+                return;
+            }
+        }
+        _values[i] = balance;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    /**
+     *
+     * Return the players in the map, in no particular order.
+     *
+     */
+    public String[] getPlayers() {
+        String[] ret = new String[_size];
+        int n = 0;
+        for(int i = 0; i < _keys.length; i++) {
+            if(_keys[i] != null) {
+                ret[n++] = _keys[i];
+            }
+        }
+        return ret;
+    }
+
+    /**
+     *
+     * Return the approximate number of bytes used, counting the player
+     * name Strings, for logging.
+     *
+     */
+    public long getFootprint() {
+        long ret = 12L * _keys.length;
+        for(int i = 0; i < _keys.length; i++) {
+            if(_keys[i] != null) {
+                ret += 40 + 2 * _keys[i].length();
+            }
+        }
+        return ret;
+    }
+
+    /**
+     *
+     * Return the slot holding the player, or the empty slot where it
+     * would go.
+     *
+     */
+    private int indexOf(String player) {
+        int mask = _keys.length - 1;
+        int h = player.hashCode();
+        int i = (h ^ (h >>> 16)) & mask;
+        while(_keys[i] != null && !_keys[i].equals(player)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+        String[] keys = _keys;
+        int[] values = _values;
+        _keys = new String[keys.length * 2];
+        _values = new int[keys.length * 2];
+        for(int i = 0; i < keys.length; i++) {
+            if(keys[i] != null) {
+                int j = indexOf(keys[i]);
+                _keys[j] = keys[i];
+                _values[j] = values[i];
+            }
+        }
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for(int i = 0; i < _keys.length; i++) {
+            if(_keys[i] != null) {
+                if(sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(_keys[i]).append('=').append(_values[i]);
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+}
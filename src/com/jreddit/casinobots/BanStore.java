@@ -0,0 +1,166 @@
+package com.jreddit.casinobots;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *
+ * Set of banned subreddits, persisted to a text file with one
+ * subreddit per line.
+ *
+ * Lookups are O(1) on a concurrent set and never block, even while a
+ * ban is being added. A new ban is appended to the file as one line and
+ * synced, rather than the whole file being rewritten, so a crash can at
+ * worst lose the ban being added. Blank lines are skipped at load. When
+ * the file is found to hold duplicate or unterminated lines it is
+ * compacted: the set is written to a temporary file which is then
+ * renamed over the original, so the file is always either the old or
+ * the new version.
+ *
+ */
+public class BanStore {
+
+    private final File _file;
+
+    private final Set<String> _bans =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     *
+     * Load the bans from the file, if it exists.
+     *
+     */
+    public BanStore(String filename) {
+        _file = new File(filename);
+        load();
+    }
+
+    /**
+     *
+     * Return true if the subreddit is banned.
+     *
+     */
+    public boolean contains(String subreddit) {
+        return subreddit != null && _bans.contains(subreddit);
+    }
+
+    /**
+     *
+     * Ban a subreddit.
+     *
+     * @return True if the subreddit was not already banned.
+     */
+    public boolean add(String subreddit) {
+
+        if(subreddit == null || !_bans.add(subreddit)) {
+            return false;
+        }
+
+        //
+        // Only appends need to be serialized. Readers go straight to
+        // the set, which already has the ban.
+        //
+        synchronized(this) {
+            try {
+                FileOutputStream fos = new FileOutputStream(_file, true);
+                try {
+                    fos.write((subreddit + "\n").getBytes("UTF-8"));
+                    fos.getFD().sync();
+                } finally {
+                    fos.close();
+                }
+            } catch(IOException ioe) {
+                ioe.printStackTrace();
+                SQLiteDatabase.log("ERROR saving ban for " + subreddit);
+            }
+        }
+
+        return true;
+    }
+
+    public int size() {
+        return _bans.size();
+    }
+
+    /**
+     *
+     * Return the banned subreddits, sorted.
+     *
+     */
+    public List<String> getBans() {
+        List<String> ret = new ArrayList<String>(_bans);
+        Collections.sort(ret);
+        return ret;
+    }
+
+    /**
+     *
+     * Rewrite the file with exactly the current bans, atomically.
+     *
+     */
+    public synchronized void compact() throws IOException {
+
+        File tmp = new File(_file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+            for(String subreddit: getBans()) {
+                out.write(subreddit);
+                out.write("\n");
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        Files.move( tmp.toPath(), 
+                    _file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE );
+    }
+
+    private void load() {
+
+        if(!_file.exists()) {
+            return;
+        }
+
+        boolean untidy = false;
+
+        try {
+
+            byte[] bytes = Files.readAllBytes(_file.toPath());
+            String text = new String(bytes, "UTF-8");
+
+            //
+            // An unterminated last line would have the next append
+            // run onto it.
+            //
+            if(text.length() > 0 && !text.endsWith("\n")) {
+                untidy = true;
+            }
+
+            for(String line: text.split("\n")) {
+                String subreddit = line.trim();
+                if(subreddit.length() == 0) {
+                    continue;
+                }
+                if(!_bans.add(subreddit)) {
+                    untidy = true;
+                }
+            }
+
+            if(untidy) {
+                compact();
+            }
+
+        } catch(IOException ioe) {
+            ioe.printStackTrace();
+            SQLiteDatabase.log("Error loading bans from " + _file);
+        }
+    }
+
+}
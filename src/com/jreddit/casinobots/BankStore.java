@@ -0,0 +1,75 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+
+/**
+ *
+ * Storage backend for bank accounts.
+ *
+ * PersistenceUtils layers player locking, the balance cache and the
+ * leaderboard over whichever store is configured, so implementations
+ * only need to store balances and apply each change atomically.
+ * Implementations deal with their own errors: methods report failure
+ * through their return value and never throw.
+ *
+ */
+public interface BankStore {
+
+    /**
+     *
+     * @return The player's balance, or -1 if the player has no account
+     *         or on error.
+     */
+    public int getBalance(String player);
+
+    /**
+     *
+     * Return the balances of many players at once.
+     *
+     * @return The balances of those players who have an account, or
+     *         null on error.
+     */
+    public BalanceMap getBalances(Collection<String> players);
+
+    /**
+     *
+     * Set a player's balance, creating the account if necessary.
+     *
+     * @return The new balance, or -1 on error.
+     */
+    public int upsertBalance(String player, int balance);
+
+    /**
+     *
+     * Add to a player's balance, creating the account if necessary.
+     *
+     * @return The new balance, or -1 on error.
+     */
+    public int creditBalance(String player, int amount);
+
+    /**
+     *
+     * Take from a player's balance, only if the player has at least
+     * that much.
+     *
+     * @return The new balance, or -1 if the player has no account,
+     *         insufficient funds, or on error.
+     */
+    public int debitBalance(String player, int amount);
+
+    /**
+     *
+     * Return every account, in no particular order.
+     *
+     * @return The accounts, or null on error.
+     */
+    public List<AccountInfo> getAccounts();
+
+    /**
+     *
+     * Return the top accounts, highest balance first.
+     *
+     */
+    public AccountInfo[] getLeaders(int limit);
+
+}
@@ -143,9 +143,11 @@ public class BankerBot extends AbstractCasinoBot
                     if( body.indexOf("bankerbot credits") != -1 ||
                         body.indexOf("bankerbot balance") != -1 ||
                         body.indexOf("bankerbot leaders") != -1 ||
+                        body.indexOf("bankerbot rank") != -1 ||
                         body.indexOf("banker credits") != -1 ||
                         body.indexOf("banker balance") != -1 ||
-                        body.indexOf("banker leaders") != -1 ) {
+                        body.indexOf("banker leaders") != -1 ||
+                        body.indexOf("banker rank") != -1 ) {
                         // 
                         // Found a bank request
                         //
@@ -192,6 +194,11 @@ public class BankerBot extends AbstractCasinoBot
         // Indicate to sleeping threads that we need to shut down.
         //
         _shutdown = true;
+
+        //
+        // Make sure buffered reply markers are on disk.
+        //
+        PersistenceUtils.flush();
     }
 
 
@@ -294,14 +301,16 @@ public class BankerBot extends AbstractCasinoBot
             //
             // Grant credits
             //
-            Object lock = PersistenceUtils.getDatabaseLock();
-            synchronized(lock) {
+            PersistenceUtils.lockPlayer(author);
+            try {
                 int bal = PersistenceUtils.getBankBalance(author);
                 if(bal <= 0) {
                     //
                     // Either zero balance or new player (-1)
                     //
-                    PersistenceUtils.setBankBalance(author, CREDIT_GRANT); 
+                    PersistenceUtils.setBankBalance( author, CREDIT_GRANT,
+                                                     BOT_NAME, 
+                                                     thing.getName() );
                     reply = 
                         "    You have been granted " + CREDIT_GRANT + 
                         " credits.";
@@ -311,6 +320,8 @@ public class BankerBot extends AbstractCasinoBot
                         " credits.  \n" +
                         "    You can request more credits when you run out.  \n";
                 }
+            } finally {
+                PersistenceUtils.unlockPlayer(author);
             }
 
         } else if(  body.indexOf("bankerbot balance") != -1 || 
@@ -319,11 +330,13 @@ public class BankerBot extends AbstractCasinoBot
             //
             // Display balance
             //
-            Object lock = PersistenceUtils.getDatabaseLock();
-            synchronized(lock) {
+            PersistenceUtils.lockPlayer(author);
+            try {
                 int bal = PersistenceUtils.getBankBalance(author); 
                 if(bal <= 0) {
-                    PersistenceUtils.setBankBalance(author, CREDIT_GRANT); 
+                    PersistenceUtils.setBankBalance( author, CREDIT_GRANT,
+                                                     BOT_NAME, 
+                                                     thing.getName() );
                     reply =
                         "    You currently do not have any credits.  \n" +
                         "    I will grant you " + CREDIT_GRANT + 
@@ -334,6 +347,8 @@ public class BankerBot extends AbstractCasinoBot
                     reply = 
                         "    Your current balance is " + bal + " credits.  \n";
                 }
+            } finally {
+                PersistenceUtils.unlockPlayer(author);
             }
 
         } else if(  body.indexOf("bankerbot leaders") != -1 || 
@@ -370,6 +385,25 @@ public class BankerBot extends AbstractCasinoBot
                     "" + (i+1) + "|" + leaders[i].getName() +
                         "|" + leaders[i].getBalance() + "\n";
             }
+
+        } else if(  body.indexOf("bankerbot rank") != -1 || 
+                    body.indexOf("banker rank") != -1 ) {
+
+            //
+            // Display the player's rank
+            //
+            int rank = PersistenceUtils.getBankRank(author);
+            if(rank == -1) {
+                reply =
+                    "    You do not have an account yet.  \n" +
+                    "    Try \"bankerbot credits\" to be granted credits.  \n";
+            } else {
+                reply =
+                    "    You are ranked " + rank + " of " + 
+                    PersistenceUtils.getBankAccountCount() + 
+                    " players with " + PersistenceUtils.getBankBalance(author) +
+                    " credits.  \n";
+            }
         }
 
 
@@ -442,7 +476,7 @@ public class BankerBot extends AbstractCasinoBot
     private void sendComment(Thing thing, String text) throws IOException {
         text += "\n\n" +
                 "----\n" +
-                "Commands: credits, balance, leaders [number] | " +
+                "Commands: credits, balance, leaders [number], rank | " +
                 "[Visit Casino](/r/RoboCasino) | " +
                 "[Contact My Human](http://www.reddit.com/message/compose/?to=BlackjackPitboss)    ";
                 // +
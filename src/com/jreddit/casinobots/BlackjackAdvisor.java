@@ -0,0 +1,293 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+
+/**
+ *
+ * Exact expected values for BlackjackBot's game.
+ *
+ * The rules are those of BlackjackBot: one deck, the dealer shows one
+ * card and draws the rest (from what is left of the deck) once the
+ * player stands, stands on all 17s, and a tie is a push. The player
+ * may only hit or stand. A two card 21 on the deal wins even money
+ * straight away.
+ *
+ * The cards left in the deck are a "shoe": the count of each of the
+ * ten blackjack values (ace, 2 to 9, ten) packed five bits each into a
+ * long. The dealer's final total distribution depends only on the shoe
+ * and the dealer's hand so far, and the player's best value only on
+ * the shoe, the player's total and the dealer's up card, so both are
+ * memoized on a long key in a bounded LRU.
+ *
+ * Values are net of the bet: +1 is a win, 0 a push, -1 a loss.
+ *
+ */
+public class BlackjackAdvisor {
+
+    //
+    // Blackjack values, by index: ace, 2 .. 9, ten.
+    //
+    private static final int VALUES = 10;
+
+    private static final int ACE = 0;
+    private static final int TEN = 9;
+
+    private static final int BITS = 5;
+
+    //
+    // Dealer outcomes: final totals 17 to 21, then bust.
+    //
+    private static final int OUTCOMES = 6;
+    private static final int BUST = 5;
+
+    private static final int CACHE_SIZE = 1 << 16;
+
+    private static final Map<Long, double[]> DEALER_CACHE = newCache();
+    private static final Map<Long, Double> PLAYER_CACHE = newCache();
+
+    private static volatile Double HOUSE_EDGE = null;
+
+    /**
+     *
+     * Return the values of standing and of hitting (and then playing
+     * on as well as possible).
+     *
+     * @param dealer    The dealer's up card, as a Cards set.
+     * @param player    The player's cards, as a Cards set.
+     *
+     * @return { stand, hit }
+     */
+    public static double[] getValues(long dealer, long player) {
+
+        long shoe = toShoe(Cards.FULL_DECK & ~(dealer | player));
+        int up = toValue(Long.numberOfTrailingZeros(dealer));
+
+        int hard = Cards.hardValue(player);
+        boolean ace = Cards.countRank(player, Cards.ACE) > 0;
+
+        return new double[] {
+            stand(shoe, best(hard, ace), up),
+            hit(shoe, hard, ace, up) };
+    }
+
+    /**
+     *
+     * Return the probability of each dealer outcome, final totals 17
+     * to 21 and then bust, drawing from the shoe. A copy, as the
+     * distributions are memoized.
+     *
+     */
+    public static double[] getDealerOutcomes(long dealer, long shoe) {
+        return (double[])dealer(shoe, Cards.hardValue(dealer), 
+                            Cards.countRank(dealer, Cards.ACE) > 0).clone();
+    }
+
+    /**
+     *
+     * Return the house edge of the game from a full deck when the
+     * player plays every hand as well as possible, as a fraction of
+     * the bet. Computed once.
+     *
+     */
+    public static double getHouseEdge() {
+
+        Double edge = HOUSE_EDGE;
+        if(edge != null) {
+            return edge.doubleValue();
+        }
+
+        long deck = toShoe(Cards.FULL_DECK);
+        double total = size(deck);
+        double ev = 0;
+
+        //
+        // Dealer's up card, then the player's two cards.
+        //
+        for(int up = 0; up < VALUES; up++) {
+            int nu = count(deck, up);
+            long afterUp = deck - one(up);
+            for(int a = 0; a < VALUES; a++) {
+                int na = count(afterUp, a);
+                if(na == 0) {
+                    continue;
+                }
+                long afterA = afterUp - one(a);
+                for(int b = 0; b < VALUES; b++) {
+                    int nb = count(afterA, b);
+                    if(nb == 0) {
+                        continue;
+                    }
+                    double p = (nu / total) * 
+                                (na / (total - 1)) * 
+                                (nb / (total - 2));
+                    if((a == ACE && b == TEN) || (a == TEN && b == ACE)) {
+                        ev += p;
+                    } else {
+                        ev += p * play( afterA - one(b),
+                                        points(a) + points(b),
+                                        a == ACE || b == ACE,
+                                        up );
+                    }
+                }
+            }
+        }
+
+        HOUSE_EDGE = Double.valueOf(-ev);
+        return -ev;
+    }
+
+    //
+    // The player's best value: the better of standing and hitting.
+    //
+    private static double play(long shoe, int hard, boolean ace, int up) {
+
+        Long key = Long.valueOf((((shoe << 5) | hard) << 1 | (ace ? 1 : 0)) 
+                                    * VALUES + up);
+        synchronized(PLAYER_CACHE) {
+            Double value = PLAYER_CACHE.get(key);
+            if(value != null) {
+                return value.doubleValue();
+            }
+        }
+
+        double value = Math.max(stand(shoe, best(hard, ace), up), 
+                                hit(shoe, hard, ace, up));
+
+        synchronized(PLAYER_CACHE) {
+            PLAYER_CACHE.put(key, Double.valueOf(value));
+        }
+        return value;
+    }
+
+    private static double hit(long shoe, int hard, boolean ace, int up) {
+        double total = size(shoe);
+        double ev = 0;
+        for(int v = 0; v < VALUES; v++) {
+            int n = count(shoe, v);
+            if(n == 0) {
+                continue;
+            }
+            int next = hard + points(v);
+            if(next > 21) {
+                ev -= n / total;
+            } else {
+                ev += (n / total) * 
+                        play(shoe - one(v), next, ace || v == ACE, up);
+            }
+        }
+        return ev;
+    }
+
+    private static double stand(long shoe, int total, int up) {
+        double[] outcomes = dealer(shoe, points(up), up == ACE);
+        double ev = outcomes[BUST];
+        for(int i = 0; i < BUST; i++) {
+            int dealerTotal = 17 + i;
+            if(dealerTotal < total) {
+                ev += outcomes[i];
+            } else if(dealerTotal > total) {
+                ev -= outcomes[i];
+            }
+        }
+        return ev;
+    }
+
+    //
+    // Dealer outcome distribution from a hand of the given hard total.
+    //
+    private static double[] dealer(long shoe, int hard, boolean ace) {
+
+        double[] ret = new double[OUTCOMES];
+        if(hard > 21) {
+            ret[BUST] = 1;
+            return ret;
+        }
+        int total = best(hard, ace);
+        if(total >= 17) {
+            ret[total - 17] = 1;
+            return ret;
+        }
+
+        Long key = Long.valueOf(((shoe << 5) | hard) << 1 | (ace ? 1 : 0));
+        synchronized(DEALER_CACHE) {
+            double[] cached = DEALER_CACHE.get(key);
+            if(cached != null) {
+                return cached;
+            }
+        }
+
+        double size = size(shoe);
+        for(int v = 0; v < VALUES; v++) {
+            int n = count(shoe, v);
+            if(n == 0) {
+                continue;
+            }
+            double[] next = dealer( shoe - one(v), 
+                                    hard + points(v), 
+                                    ace || v == ACE );
+            for(int i = 0; i < OUTCOMES; i++) {
+                ret[i] += (n / size) * next[i];
+            }
+        }
+
+        synchronized(DEALER_CACHE) {
+            DEALER_CACHE.put(key, ret);
+        }
+        return ret;
+    }
+
+    private static int best(int hard, boolean ace) {
+        return (ace && hard + 10 <= 21) ? hard + 10 : hard;
+    }
+
+    /**
+     *
+     * Count the cards of a Cards set by blackjack value.
+     *
+     */
+    static long toShoe(long cards) {
+        long shoe = 0;
+        while(cards != 0) {
+            shoe += one(toValue(Long.numberOfTrailingZeros(cards)));
+            cards &= cards - 1;
+        }
+        return shoe;
+    }
+
+    private static int toValue(int card) {
+        int rank = Cards.rank(card);
+        if(rank == Cards.ACE) {
+            return ACE;
+        }
+        return Math.min(rank + 1, TEN);
+    }
+
+    private static int points(int value) {
+        return value + 1;
+    }
+
+    private static long one(int value) {
+        return 1L << (value * BITS);
+    }
+
+    private static int count(long shoe, int value) {
+        return (int)(shoe >>> (value * BITS)) & ((1 << BITS) - 1);
+    }
+
+    private static int size(long shoe) {
+        int n = 0;
+        for(int v = 0; v < VALUES; v++) {
+            n += count(shoe, v);
+        }
+        return n;
+    }
+
+    private static <V> Map<Long, V> newCache() {
+        return new LinkedHashMap<Long, V>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Long, V> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+    }
+
+}
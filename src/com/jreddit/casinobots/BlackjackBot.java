@@ -2,6 +2,7 @@ package com.jreddit.casinobots;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.*;
 
 import java.text.DateFormat;
@@ -59,11 +60,18 @@ public class BlackjackBot extends AbstractCasinoBot
 
     private BlackjackEngine _engine;
 
+    private final Random _random = new java.security.SecureRandom();
+
     private int _activeCycles;
 
     private Date _startTime;
 
-    private List<String> _banList;
+    private BanStore _bans;
+
+    //
+    // Game state of our game comments.
+    //
+    private GameSessionStore _sessions;
 
     private String _owner;
 
@@ -75,6 +83,17 @@ public class BlackjackBot extends AbstractCasinoBot
     private int _gamesStarted   = 0;
     private int _gamesPlayed    = 0;
 
+    //
+    // Credits bet and paid back, for the realized house edge.
+    //
+    private final AtomicLong _creditsBet    = new AtomicLong();
+    private final AtomicLong _creditsPaid   = new AtomicLong();
+
+    //
+    // House edge with best play, worked out in the background at init.
+    //
+    private volatile String _houseEdge = "computing";
+
     /**
      *
      * Provide a default no argument constructor
@@ -111,8 +130,9 @@ public class BlackjackBot extends AbstractCasinoBot
 
         _engine = new BlackjackEngine();
 
+        _sessions = new GameSessionStore(BOT_NAME);
+
         _startTime      = new Date();
-        _banList        = new ArrayList<String>();
 
         // Connect
         try {
@@ -124,8 +144,24 @@ public class BlackjackBot extends AbstractCasinoBot
         //
         // Init bans from file.
         //
-        PersistenceUtils.loadList(BANS_FILE, _banList, -1);
-        log("Loaded bans:               " + _banList.size()  );
+        _bans = new BanStore(BANS_FILE);
+        log("Loaded bans:               " + _bans.size()  );
+
+        //
+        // Takes a few seconds, so do not hold up startup.
+        //
+        Thread edge = new Thread("BlackjackHouseEdge") {
+            public void run() {
+                long start = System.currentTimeMillis();
+                _houseEdge = String.format("%.2f%%", 
+                                100 * BlackjackAdvisor.getHouseEdge());
+                log("House edge with best play: " + _houseEdge + 
+                    " (computed in " + 
+                    (System.currentTimeMillis() - start) + "ms)");
+            }
+        };
+        edge.setDaemon(true);
+        edge.start();
 
         _crawler = CasinoCrawler.getCrawler();
 
@@ -231,6 +267,11 @@ public class BlackjackBot extends AbstractCasinoBot
         // Indicate to sleeping threads that we need to shut down.
         //
         _shutdown = true;
+
+        //
+        // Make sure buffered reply markers are on disk.
+        //
+        PersistenceUtils.flush();
     }
 
 
@@ -326,6 +367,14 @@ public class BlackjackBot extends AbstractCasinoBot
                 log("Banned subs:   [" + getBanListAsString() + "]");
                 log("Games started: " + _gamesStarted );
                 log("Games played:  " + _gamesPlayed );
+                log("House edge:    " + _houseEdge + " best play, " +
+                        getRealizedEdge() + " realized" );
+                log("Player locks:  " + PersistenceUtils.getLockStats() );
+                log("Reply filter:  " + 
+                        PersistenceUtils.getReplyFilterStats(BOT_NAME) );
+                log("Balance cache: " + 
+                        PersistenceUtils.getBalanceCacheStats() );
+                log("Persistence:   " + PersistenceMetrics.getSummary() );
                 log("Running since: " + DATE_FORMAT.format(_startTime) );
                 log("Last activity: " + DATE_FORMAT.format(lastActivity) );
 
@@ -395,7 +444,7 @@ public class BlackjackBot extends AbstractCasinoBot
         //
         // Are we banned from the subreddit? If yes, skip it.
         //
-        if(_banList.contains(thing.getSubreddit())) {
+        if(_bans.contains(thing.getSubreddit())) {
             log("Ignoring request in BANNED sub " + thing.getSubreddit());
             return;
         }
@@ -460,106 +509,115 @@ public class BlackjackBot extends AbstractCasinoBot
 
         log("Starting new game with user " + author + " bet " + bet);
 
-        Object dbLock = PersistenceUtils.getDatabaseLock();
-        synchronized(dbLock) {
+        boolean sufficientFunds = true;
 
-            boolean sufficientFunds = false;
+        //
+        // The game, if it is still to be played.
+        //
+        GameSession session = null;
 
-            int bal = -1;
-            if(bet != -1) {
-                bal = PersistenceUtils.getBankBalance(author);
-            }
+        //
+        // Take the bet up front. The debit only happens if the player
+        // has enough credits.
+        //
+        if(bet != -1) {
+            sufficientFunds = 
+                (PersistenceUtils.debitBankBalance( author, bet,
+                                                    BOT_NAME, 
+                                                    thing.getName() ) != -1);
+        }
 
-            if(bet == -1 || bal >= bet) {
+        if(sufficientFunds) {
 
+            if(bet != -1) {
+                _creditsBet.addAndGet(bet);
+            }
 
-                //
-                // Get the dealer's hand
-                //
-                BlackjackHand dealerHand = 
-                    new BlackjackHand( 
-                            new BlackjackCard[] { _engine.dealCard() } );
-         
-                //
-                // Get the player's hand
-                //
-                BlackjackHand playerHand = (BlackjackHand)_engine.dealHand();
-        
-                //
-                // Create message for player
-                //
-                message = createGameOutput( dealerHand, playerHand, 
-                                            author, bet);
-           
-                //
-                // See if we just dealt them a blackjack.
-                // If yes, they win.
-                // Append message to player with winner info.
-                //
-                if(playerHand.isBlackjack()) {
-                    message += "    ...  \n";
-                    message += "    Game over. You win!  \n";
-      
-                    if(bet != -1) {
-                        int oldBal = PersistenceUtils.getBankBalance(
-                                                                author );
-                        PersistenceUtils.setBankBalance(author, 
-                                                            oldBal + (bet*2));
-                    }
+            //
+            // Deal the dealer's up card and the player's hand
+            //
+            long dealer = Cards.mask(Cards.deal(0, _random));
+            long player = dealCards(dealer, 2);
+    
+            //
+            // Create message for player
+            //
+            message = createGameOutput( toHand(Cards.toStrings(dealer)), 
+                                        toHand(Cards.toStrings(player)), 
+                                        author, bet);
+       
+            //
+            // See if we just dealt them a blackjack.
+            // If yes, they win.
+            // Append message to player with winner info.
+            //
+            if(Cards.isBlackjack(player)) {
+                message += "    ...  \n";
+                message += "    Game over. You win!  \n";
+  
+                if(bet != -1) {
+                    PersistenceUtils.creditBankBalance( author, bet*2,
+                                                        BOT_NAME, 
+                                                        thing.getName() );
+                    _creditsPaid.addAndGet(bet*2);
                 }
-                
-                sufficientFunds = true;
 
             } else {
 
-                sufficientFunds = false;
-
-                message = 
-                    "    You do not have sufficient funds to bet " + bet + 
-                    " credit(s).  \n" +
-                    "    Try betting fewer credits or try " +
-                    "\"bankerbot credits\" to be granted credits.  \n";
+                session = new GameSession(  bet == -1 ? null : author,
+                                            bet,
+                                            Cards.toStrings(dealer),
+                                            Cards.toStrings(player),
+                                            0, false );
             }
 
-            //
-            // Reply to player.
-            //
-            try {
+        } else {
 
-                if(bet != -1 && sufficientFunds) {
-                    PersistenceUtils.setBankBalance(author, bal-bet);
-                }
+            message = 
+                "    You do not have sufficient funds to bet " + bet + 
+                " credit(s).  \n" +
+                "    Try betting fewer credits or try " +
+                "\"bankerbot credits\" to be granted credits.  \n";
+        }
 
-                if(bet == -1) {
-                    //
-                    // Don't pass author to sendComment() if we are not
-                    // playing for credits.
-                    //
-                    author = null;
-                }
+        //
+        // Reply to player.
+        //
+        try {
+
+            if(bet == -1) {
+                //
+                // Don't pass author to sendComment() if we are not
+                // playing for credits.
+                //
+                author = null;
+            }
 
+            if(session != null) {
+                putSession(sendGameComment(thing, message, author), session);
+            } else {
                 sendComment(thing, message, author);
+            }
 
-                _gamesStarted++;
+            _gamesStarted++;
 
-            } catch(DeletedCommentException dce) {
+        } catch(DeletedCommentException dce) {
 
-                log("Ignoring deleted item... " + thing);
+            log("Ignoring deleted item... " + thing);
 
-            } catch(BannedUserException ioe) {
+        } catch(BannedUserException ioe) {
 
-                String subreddit = thing.getSubreddit();
-                addBan(subreddit);
+            String subreddit = thing.getSubreddit();
+            addBan(subreddit);
 
-            } catch(IOException ioe) {
+        } catch(IOException ioe) {
 
-                ioe.printStackTrace(); 
+            ioe.printStackTrace(); 
 
-                //
-                // Some other error replying to comment...
-                //
-                log("ERROR replying to:\n" + thing);
-            }
+            //
+            // Some other error replying to comment...
+            //
+            log("ERROR replying to:\n" + thing);
         }
 
         //
@@ -581,6 +639,11 @@ public class BlackjackBot extends AbstractCasinoBot
      *
      */
     private void continueGames(List<Message> messages) throws IOException {
+
+        //
+        // Results of settled games we failed to send last time.
+        //
+        sendUnsentReplies();
         
         if(messages.size() == 0) {
             return;
@@ -623,7 +686,7 @@ public class BlackjackBot extends AbstractCasinoBot
             // Are we banned from here? If yes, skip it.
             //
             String subreddit = message.getSubreddit();
-            if( subreddit != null && _banList.contains(subreddit) ) {
+            if( subreddit != null && _bans.contains(subreddit) ) {
 
                 log("Ignoring reply in BANNED sub " + subreddit);
 
@@ -676,33 +739,34 @@ public class BlackjackBot extends AbstractCasinoBot
                                 //
                                
                                 //
-                                // Get the dealer's hand
+                                // Deal the dealer's up card and the
+                                // player's hand
                                 //
-                                BlackjackHand dealerHand = 
-                                    new BlackjackHand( 
-                                            new BlackjackCard[] { _engine.dealCard() } );
-         
+                                long dealer = Cards.mask(Cards.deal(0, _random));
+                                long player = dealCards(dealer, 2);
 
-                                //
-                                // Get the player's hand
-                                //
-                                BlackjackHand playerHand = (BlackjackHand)_engine.dealHand();
                                 //
                                 // Ensure we do not deal a blackjack 
                                 // automatically for URL requests
                                 //
-                                while(playerHand.isBlackjack()) {
-                                    playerHand = (BlackjackHand)_engine.dealHand();
+                                while(Cards.isBlackjack(player)) {
+                                    player = dealCards(dealer, 2);
                                 }
         
                                 //
                                 // Create message for player
                                 //
                                 String text = createGameOutput( 
-                                                dealerHand, playerHand, 
+                                                toHand(Cards.toStrings(dealer)), 
+                                                toHand(Cards.toStrings(player)), 
                                                 (String)null, -1);
 
-                                sendComment(replyTo, text, (String)null);
+                                putSession( 
+                                    sendGameComment(replyTo, text, (String)null),
+                                    new GameSession(null, -1,
+                                                Cards.toStrings(dealer),
+                                                Cards.toStrings(player),
+                                                0, false) );
                             }
                         } catch (BannedUserException bue) {
                             addBan(replyTo.getSubreddit());
@@ -759,14 +823,12 @@ public class BlackjackBot extends AbstractCasinoBot
                 continue;
             }
 
-            log("Getting parent comment to obtain game state.");
-
             //
             // Get game state
             //
-            Comment parent = Comments.getComment(_user, parentId);
+            GameSession session = getSession(parentId);
 
-            if( parent == null ) {
+            if( session == null ) {
 
                 //
                 // Can't parse game state. Nothing to do.
@@ -776,38 +838,8 @@ public class BlackjackBot extends AbstractCasinoBot
                 Messages.markAsRead(_user, message);
                 continue;
             }
-         
-            String parentBody = parent.getBody();
 
-            if( parentBody == null ) {
-
-                //
-                // Can't parse game state. Nothing to do.
-                // Could maybe inform user that comment was deleted???
-                //
-
-                Messages.markAsRead(_user, message);
-                continue;
-            }
-
-            log("Checking for finished game.");
-
-            if( parentBody == null ) {
-                log("Skipping empty game for " + message);
-                Messages.markAsRead(_user, message);
-                continue;
-            }
-
-            if( parentBody.indexOf("Dealer hand:") == -1) {
-                //
-                // Not a game.
-                //
-                log("Skipping message (not a game) for " + message);
-                Messages.markAsRead(_user, message);
-                continue;
-            }
-
-            if( parentBody.indexOf("Game over.") != -1) {
+            if( session.isFinished() ) {
 
                 //
                 // This game is ended. Why are they still replying to us?
@@ -819,25 +851,8 @@ public class BlackjackBot extends AbstractCasinoBot
                 continue;
             }
 
-            String player = null;
-            int bet = -1;
-
-            log("Looking for player info.");
-
-            //
-            // Parse player and bet.
-            //
-            String pattern = "Player: (\\S+) bet: (\\d+) credit";
-            Pattern r = Pattern.compile(pattern);
-            Matcher m = r.matcher(parentBody);
-            if(m.find()) {
-                player = m.group(1);
-                try {
-                    bet = Integer.parseInt(m.group(2));
-                } catch( NumberFormatException nfe ) {
-                    // Not much to do here, check for -1 as bet later.
-                }
-            }
+            String player = session.getPlayer();
+            int bet = session.getBet();
 
             log("Found player and bet " + player + " " + bet);
 
@@ -845,7 +860,7 @@ public class BlackjackBot extends AbstractCasinoBot
                 // 
                 // We must not be playing a game for credits.
                 //
-                log("Playing game without credit bet for:\n" + parentBody);
+                log("Playing game without credit bet for " + parentId);
 
             } else {
 
@@ -855,7 +870,7 @@ public class BlackjackBot extends AbstractCasinoBot
                 // have not already played this turn.
                 //
              
-                if(PersistenceUtils.isBotReplied(BOT_NAME, parent.getName())) {
+                if(PersistenceUtils.isBotReplied(BOT_NAME, parentId)) {
                     log("Already played this turn for " + message);
                     Messages.markAsRead(_user, message);
                     continue;
@@ -870,10 +885,17 @@ public class BlackjackBot extends AbstractCasinoBot
                 }
             }
 
-            BlackjackHand dealerHand = parseHand(   parent.getBody(),
-                                                    PARSE_DEALER_SECTION); 
-            BlackjackHand playerHand = parseHand(   parent.getBody(),
-                                                    PARSE_PLAYER_SECTION); 
+            //
+            // Cards in deal order, for display, and as sets, for
+            // dealing and scoring.
+            //
+            String[] dealerCards = session.getDealerCards();
+            String[] playerCards = session.getPlayerCards();
+            long dealer = Cards.toMask(dealerCards);
+            long hand = Cards.toMask(playerCards);
+
+            BlackjackHand dealerHand = toHand(dealerCards);
+            BlackjackHand playerHand = toHand(playerCards);
 
             log("Playing game " + "(" + message.getSubreddit() + ")" );
             log("   " + dealerHand);
@@ -890,13 +912,16 @@ public class BlackjackBot extends AbstractCasinoBot
 
                 log("    Player hits.");
 
-                playerHand = (BlackjackHand)_engine.dealCard(playerHand);
+                int card = Cards.deal(dealer | hand, _random);
+                hand |= Cards.mask(card);
+                playerCards = append(playerCards, card);
+                playerHand = toHand(playerCards);
 
                 String output = createGameOutput(   dealerHand, 
                                                     playerHand,
                                                     player,
                                                     bet );
-                if(playerHand.isBusted()) {
+                if(Cards.isBusted(hand)) {
                     output += "    ...  \n";
                     output += "    Game over. You lose.  \n";
                 }
@@ -915,10 +940,19 @@ public class BlackjackBot extends AbstractCasinoBot
                         player = null;
                     }
 
-                    sendComment(message, output, player);
+                    if(Cards.isBusted(hand)) {
+                        sendComment(message, output, player);
+                    } else {
+                        putSession( sendGameComment(message, output, player),
+                                    new GameSession(
+                                                player, bet,
+                                                dealerCards, playerCards,
+                                                playerCards.length - 2,
+                                                false ));
+                    }
                     if(bet != -1) {
-                        PersistenceUtils.setBotReplied( BOT_NAME, 
-                                                        parent.getName());
+                        PersistenceUtils.setTurnPlayed( BOT_NAME, 
+                                                        parentId);
                     }
                     PersistenceUtils.setBotReplied(BOT_NAME, message.getName());
                     _gamesPlayed++;
@@ -961,6 +995,11 @@ public class BlackjackBot extends AbstractCasinoBot
 
                 log("    Player stays.");
 
+                //
+                // Credits to pay back to the player, settled below.
+                //
+                int payout = 0;
+
                 //
                 // We'll player dealer stands on all 17's
                 // http://www.predictem.com/blackjack/dealer.php
@@ -969,7 +1008,10 @@ public class BlackjackBot extends AbstractCasinoBot
                 //
                 // Flip dealer card.
                 //
-                dealerHand = (BlackjackHand)_engine.dealCard(dealerHand);
+                int card = Cards.deal(dealer | hand, _random);
+                dealer |= Cards.mask(card);
+                dealerCards = append(dealerCards, card);
+                dealerHand = toHand(dealerCards);
                 String output = createGameOutput(   dealerHand, 
                                                     playerHand,
                                                     player,
@@ -979,13 +1021,13 @@ public class BlackjackBot extends AbstractCasinoBot
                 log("   " + dealerHand);
                 log("   " + playerHand);
 
-                while(!dealerHand.isBusted()) {
+                while(!Cards.isBusted(dealer)) {
                     //
                     // Check the current state of the dealer's hand.
                     // If they have 17 or more, stop hitting, break
                     // and check scores.
                     //
-                    if(dealerHand.getValues()[0].intValue() >= 17) {
+                    if(Cards.blackjackValue(dealer) >= 17) {
                         break;
                     }
 
@@ -996,7 +1038,10 @@ public class BlackjackBot extends AbstractCasinoBot
                     output += "    Dealer must hit.  \n";
                     output += "    ...  \n";
 
-                    dealerHand = (BlackjackHand)_engine.dealCard(dealerHand);
+                    card = Cards.deal(dealer | hand, _random);
+                    dealer |= Cards.mask(card);
+                    dealerCards = append(dealerCards, card);
+                    dealerHand = toHand(dealerCards);
                     output += createGameOutput( dealerHand, 
                                                 playerHand,
                                                 null,
@@ -1007,29 +1052,23 @@ public class BlackjackBot extends AbstractCasinoBot
                     log("   " + playerHand);
                 }
 
-                if(dealerHand.isBusted()) {
+                if(Cards.isBusted(dealer)) {
                     //
                     // Dealer busts
                     //
                     output += "    ...  \n";
                     output += "    Game over. You win!  \n";
 
-                    Object dbLock = PersistenceUtils.getDatabaseLock();
                     if(bet != -1) {
-                        synchronized(dbLock) {
-                            int oldBal = PersistenceUtils.getBankBalance(
-                                                                player );
-                            PersistenceUtils.setBankBalance(player, 
-                                                            oldBal + (bet*2));
-                        }
+                        payout = bet*2;
                     }
 
                 } else {
                     //
                     // Check scores.
                     //
-                    int playerVal = playerHand.getValues()[0].intValue();
-                    int dealerVal = dealerHand.getValues()[0].intValue();
+                    int playerVal = Cards.blackjackValue(hand);
+                    int dealerVal = Cards.blackjackValue(dealer);
                     if(playerVal == dealerVal) {
 
                         // Push
@@ -1037,14 +1076,8 @@ public class BlackjackBot extends AbstractCasinoBot
                         output += "    ...  \n";
                         output += "    Game over. Push.  \n";
 
-                        Object dbLock = PersistenceUtils.getDatabaseLock();
                         if(bet != -1) {
-                            synchronized(dbLock) {
-                                int oldBal = PersistenceUtils.getBankBalance(
-                                                                player );
-                                PersistenceUtils.setBankBalance(player, 
-                                                            oldBal + (bet));
-                            }
+                            payout = bet;
                         }
 
                     } else {
@@ -1055,15 +1088,8 @@ public class BlackjackBot extends AbstractCasinoBot
                             output += "    ...  \n";
                             output += "    Game over. You win!  \n";
                    
-                            Object dbLock = PersistenceUtils.getDatabaseLock();
                             if(bet != -1) {
-                                synchronized(dbLock) {
-                                    int oldBal = 
-                                        PersistenceUtils.getBankBalance(
-                                                                player );
-                                    PersistenceUtils.setBankBalance(player, 
-                                                            oldBal + (bet*2));
-                                }
+                                payout = bet*2;
                             }
 
                         } else {
@@ -1076,6 +1102,31 @@ public class BlackjackBot extends AbstractCasinoBot
                     }
                 }
 
+                //
+                // Pay out and mark the turn played in one transaction,
+                // before replying, so the turn can never be paid twice.
+                // If it fails leave the message unread to retry later.
+                //
+                boolean settled = false;
+                if(bet != -1) {
+                    settled = PersistenceUtils.settleGame(
+                                                BOT_NAME, player, payout,
+                                                parentId,
+                                                message.getName() );
+                } else {
+                    settled = PersistenceUtils.settleGame(
+                                                BOT_NAME, player, 0,
+                                                null,
+                                                message.getName() );
+                }
+                if(!settled) {
+                    log("ERROR settling game for " + message);
+                    continue;
+                }
+                if(bet != -1) {
+                    _creditsPaid.addAndGet(payout);
+                }
+
                 //
                 // Send the output game state to the user.
                 //
@@ -1088,11 +1139,6 @@ public class BlackjackBot extends AbstractCasinoBot
                     }
 
                     sendComment(message, output, player);
-                    if(bet != -1) {
-                        PersistenceUtils.setBotReplied( BOT_NAME, 
-                                                        parent.getName());
-                    }
-                    PersistenceUtils.setBotReplied(BOT_NAME, message.getName());
                     _gamesPlayed++;
 
                 } catch(DeletedCommentException dce) {
@@ -1103,6 +1149,15 @@ public class BlackjackBot extends AbstractCasinoBot
 
                     addBan(subreddit);
 
+                } catch(IOException ioe) {
+
+                    //
+                    // The game is settled, so playing the message again
+                    // is not an option. Keep the result to send later.
+                    //
+                    addUnsentReply( message, 
+                                    formatComment(output, player), ioe );
+                    _gamesPlayed++;
                 } 
 
                 //
@@ -1118,6 +1173,63 @@ public class BlackjackBot extends AbstractCasinoBot
  
             }
 
+            if( body.equals("hint") ||
+                body.startsWith("hint") ) {
+
+                log("    Player asks for a hint.");
+
+                //
+                // Work out the exact value of hitting and standing
+                // from the cards left in the deck, and reply with the
+                // better. The game carries on from our reply.
+                //
+                long start = System.currentTimeMillis();
+                double[] values = BlackjackAdvisor.getValues(dealer, hand);
+                log("    Solved hit/stand in " + 
+                    (System.currentTimeMillis() - start) + "ms");
+
+                boolean hit = values[1] > values[0];
+
+                String output = createGameOutput(   dealerHand, 
+                                                    playerHand,
+                                                    player,
+                                                    bet );
+                output += "    ...  \n";
+                output += "    Hint: " + (hit ? "hit" : "stand") + ".  \n";
+                output += "    Expected result per credit bet: stand " +
+                            String.format("%+.4f", values[0]) + ", hit " +
+                            String.format("%+.4f", values[1]) + ".  \n";
+
+                try {
+
+                    if(bet == -1) {
+                        // Don't send player info to sendComment() if
+                        // we are not playing for credits.
+                        player = null;
+                    }
+
+                    putSession( sendGameComment(message, output, player), 
+                                session );
+                    if(bet != -1) {
+                        PersistenceUtils.setTurnPlayed( BOT_NAME, 
+                                                        parentId);
+                    }
+                    PersistenceUtils.setBotReplied(BOT_NAME, message.getName());
+
+                } catch(DeletedCommentException dce) {
+
+                    log("Ignoring deleted comment... " + message);
+
+                } catch(BannedUserException ioe) {
+
+                    addBan(subreddit);
+
+                } 
+
+                Messages.markAsRead(_user, message);
+                continue;
+            }
+
             //
             // TODO add split? add double down? etc...
             //
@@ -1144,10 +1256,11 @@ public class BlackjackBot extends AbstractCasinoBot
                     player = null;
                 }
 
-                sendComment(message, output, player);
+                putSession( sendGameComment(message, output, player), 
+                            session );
                 if(bet != -1) {
-                    PersistenceUtils.setBotReplied( BOT_NAME, 
-                                                    parent.getName());
+                    PersistenceUtils.setTurnPlayed( BOT_NAME, 
+                                                    parentId);
                 }
                 PersistenceUtils.setBotReplied(BOT_NAME, message.getName());
 
@@ -1172,6 +1285,123 @@ public class BlackjackBot extends AbstractCasinoBot
 
     }
 
+    /**
+     *
+     * Return the game state of one of our game comments, from the
+     * session store, where it is kept when the comment is posted, or
+     * else by fetching the comment and parsing it. Finished games and
+     * comments whose name we did not learn are not in the store.
+     *
+     * @param parentId  The name of our game comment.
+     *
+     * @return The game state, or null if the comment is gone or is not
+     *         a game.
+     */
+    private GameSession getSession(String parentId) throws IOException {
+
+        GameSession session = _sessions.get(parentId);
+        if(session != null) {
+            log("Found game state in session store.");
+            return session;
+        }
+
+        log("Getting parent comment to obtain game state.");
+
+        Comment parent = Comments.getComment(_user, parentId);
+        if( parent == null || parent.getBody() == null ) {
+            return null;
+        }
+
+        String parentBody = parent.getBody();
+
+        if( parentBody.indexOf("Dealer hand:") == -1) {
+            //
+            // Not a game.
+            //
+            log("Skipping message (not a game) for " + parentId);
+            return null;
+        }
+
+        String player = null;
+        int bet = -1;
+
+        log("Looking for player info.");
+
+        //
+        // Parse player and bet.
+        //
+        String pattern = "Player: (\\S+) bet: (\\d+) credit";
+        Pattern r = Pattern.compile(pattern);
+        Matcher m = r.matcher(parentBody);
+        if(m.find()) {
+            player = m.group(1);
+            try {
+                bet = Integer.parseInt(m.group(2));
+            } catch( NumberFormatException nfe ) {
+                // Not much to do here, check for -1 as bet later.
+            }
+        }
+
+        if( parentBody.indexOf("Game over.") != -1) {
+            return new GameSession( null, -1, 
+                                    new String[0], new String[0], 
+                                    0, true );
+        }
+
+        BlackjackHand dealerHand = parseHand(   parentBody,
+                                                PARSE_DEALER_SECTION); 
+        BlackjackHand playerHand = parseHand(   parentBody,
+                                                PARSE_PLAYER_SECTION); 
+
+        //
+        // Every turn hits the player one card, from the two dealt.
+        //
+        return new GameSession(
+                        bet == -1 ? null : player,
+                        bet,
+                        GameSession.toStrings(dealerHand.getCards()),
+                        GameSession.toStrings(playerHand.getCards()),
+                        playerHand.getCards().length - 2,
+                        false );
+    }
+
+    /**
+     *
+     * Deal cards which are not on the table.
+     *
+     * @param table Cards already on the table.
+     * @param count Number of cards to deal.
+     *
+     * @return The cards dealt.
+     */
+    private long dealCards(long table, int count) {
+        long ret = 0;
+        for(int i = 0; i < count; i++) {
+            ret |= Cards.mask(Cards.deal(table | ret, _random));
+        }
+        return ret;
+    }
+
+    /**
+     *
+     * Return the cards with one more card on the end.
+     *
+     */
+    private static String[] append(String[] cards, int card) {
+        String[] ret = Arrays.copyOf(cards, cards.length + 1);
+        ret[cards.length] = Cards.toString(card);
+        return ret;
+    }
+
+    /**
+     *
+     * Build the simple-cards hand for display.
+     *
+     */
+    private BlackjackHand toHand(String[] cards) {
+        return (BlackjackHand)_engine.parseCards(cards);
+    }
+
     private static final int PARSE_DEALER_SECTION = 0;
     private static final int PARSE_PLAYER_SECTION = 1;
 
@@ -1232,12 +1462,44 @@ public class BlackjackBot extends AbstractCasinoBot
      */
     private void sendComment(Thing thing, String text, String player) 
                                                     throws IOException {
+        Comments.comment(_user, thing, formatComment(text, player));
+    }
+
+    /**
+     * Send a game comment whose session is to be stored.
+     *
+     * @return The name of the comment, or null if it could not be
+     *         learned, see postGameComment().
+     */
+    private String sendGameComment( Thing thing, 
+                                    String text, 
+                                    String player ) throws IOException {
+        return postGameComment(thing, formatComment(text, player));
+    }
+
+    /**
+     *
+     * Keep the session of a game comment we posted, so replies to it
+     * can be played without fetching it.
+     *
+     * @param name  The name of the comment, or null if not known, in
+     *              which case replies fetch the comment.
+     *
+     */
+    private void putSession(String name, GameSession session) {
+        if(name != null) {
+            _sessions.put(name, session);
+        }
+    }
+
+    /**
+     * Return the text of a comment with the player's credits, if
+     * playing for credits, and the bot's signature appended.
+     */
+    private String formatComment(String text, String player) {
         int bal = -1; 
         if(player != null) { 
-            Object dbLock = PersistenceUtils.getDatabaseLock();
-            synchronized(dbLock) {
-                bal = PersistenceUtils.getBankBalance( player );
-            }
+            bal = PersistenceUtils.getBankBalance( player );
 
             if(bal > 0) {
                 text += "\n\n" +
@@ -1254,7 +1516,7 @@ public class BlackjackBot extends AbstractCasinoBot
 
         text += "\n\n" +
                 "----\n" +
-                "Commands: hit, stand | " +
+                "Commands: hit, stand, hint | " +
                 "[Visit Casino](/r/RoboCasino) | " +
                 "[FAQ](http://www.reddit.com/r/RoboCasino/wiki/faq) | " +
                 "[Contact My Human](http://www.reddit.com/message/compose/?to=BlackjackPitboss)    ";
@@ -1262,7 +1524,7 @@ public class BlackjackBot extends AbstractCasinoBot
                 // "\n\n" +
                 // "^^Please ^^remember ^^to ^^tip ^^your ^^dealer  \n";
 
-        Comments.comment(_user, thing, text);
+        return text;
     }
 
     /**
@@ -1270,11 +1532,29 @@ public class BlackjackBot extends AbstractCasinoBot
      * Add a subreddit to our ban set.
      *
      */
-    private synchronized void addBan(String subreddit) {
-        log("Adding ban for: " + subreddit);
-        _banList.add(subreddit);
+    private void addBan(String subreddit) {
+        if(_bans.add(subreddit)) {
+            log("Adding ban for: " + subreddit);
+        }
+    }
 
-        PersistenceUtils.saveList(BANS_FILE, _banList);
+    /**
+     *
+     * Return the share of credits bet which the house has kept so far.
+     *
+     */
+    private String getRealizedEdge() {
+        //
+        // Paid first, so a game starting in between can only make the
+        // edge look higher, never count a payout without its bet.
+        //
+        long paid = _creditsPaid.get();
+        long bet = _creditsBet.get();
+        if(bet == 0) {
+            return "n/a";
+        }
+        return String.format("%.2f%%", 100.0 * (bet - paid) / bet) +
+                " of " + bet + " credits";
     }
 
     /**
@@ -1282,7 +1562,7 @@ public class BlackjackBot extends AbstractCasinoBot
      */
     private String getBanListAsString() {
         String ret = "";
-        for(String subreddit: _banList) {
+        for(String subreddit: _bans.getBans()) {
             if(ret.equals("")) {
                 ret = subreddit;
             } else {
@@ -0,0 +1,267 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+
+import com.simplecards.*;
+
+/**
+ *
+ * Primitive playing cards.
+ *
+ * A card is an int from 0 to 51, rank * 4 + suit, with ranks 0 (deuce)
+ * to 12 (ace). A set of cards (a hand, or the cards already dealt from
+ * a deck) is a long with bit n set for card n, so the four cards of a
+ * rank are four adjacent bits. Dealing, exclusion and hand values work
+ * on these without allocating. The simple-cards Card and Hand types are
+ * only converted to and from at the edges, by their text, e.g. "10♠".
+ *
+ */
+public class Cards {
+
+    public static final int DECK_SIZE = 52;
+
+    public static final long FULL_DECK = (1L << DECK_SIZE) - 1;
+
+    public static final int ACE = 12;
+
+    private static final String[] RANKS = new String[] {
+        "2", "3", "4", "5", "6", "7", "8", "9", "10", "J", "Q", "K", "A" };
+
+    //
+    // Spellings of each suit accepted by parse().
+    //
+    private static final String[] SUIT_ALIASES = new String[] {
+        "♠♤sS", "♥♡hH", "♦♢dD", "♣♧cC" };
+
+    //
+    // Suit symbols by suit, as written by toString(). These are the
+    // symbols simple-cards writes, so cards we create from text parse
+    // back the same. Worked out once, and never changed after.
+    //
+    private static final char[] SUITS = getSimpleCardsSuits();
+
+    //
+    // Blackjack value of each rank, aces counted as one.
+    //
+    private static final int[] BLACKJACK_VALUES = new int[] {
+        2, 3, 4, 5, 6, 7, 8, 9, 10, 10, 10, 10, 1 };
+
+    public static int rank(int card) {
+        return card >> 2;
+    }
+
+    public static int suit(int card) {
+        return card & 3;
+    }
+
+    public static int card(int rank, int suit) {
+        return (rank << 2) | suit;
+    }
+
+    public static long mask(int card) {
+        return 1L << card;
+    }
+
+    /**
+     *
+     * Parse a card's text, e.g. "10♠" or "A♦".
+     *
+     * @throws IllegalArgumentException if it is not a card.
+     */
+    public static int parse(String text) {
+
+        text = text.trim();
+        if(text.length() < 2) {
+            throw new IllegalArgumentException("Not a card: " + text);
+        }
+
+        String rankText = text.substring(0, text.length() - 1);
+        if(rankText.equals("T")) {
+            rankText = "10";
+        }
+        int rank = -1;
+        for(int i = 0; i < RANKS.length; i++) {
+            if(RANKS[i].equals(rankText)) {
+                rank = i;
+                break;
+            }
+        }
+
+        int suit = parseSuit(text.charAt(text.length() - 1));
+
+        if(rank == -1 || suit == -1) {
+            throw new IllegalArgumentException("Not a card: " + text);
+        }
+
+        return card(rank, suit);
+    }
+
+    /**
+     *
+     * @return The suit of a suit symbol, or -1 if it is not one.
+     */
+    private static int parseSuit(char symbol) {
+        for(int i = 0; i < SUIT_ALIASES.length; i++) {
+            if(SUIT_ALIASES[i].indexOf(symbol) != -1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     *
+     * Return the symbol simple-cards writes for each suit, from the
+     * text of cards it deals, or our own where that fails.
+     *
+     */
+    private static char[] getSimpleCardsSuits() {
+
+        char[] ret = new char[] { '♠', '♥', '♦', '♣' };
+
+        try {
+
+            PokerEngine engine = new PokerEngine();
+            Hand dealt = new PokerHand();
+            boolean[] seen = new boolean[ret.length];
+            int left = ret.length;
+
+            for(int i = 0; i < DECK_SIZE && left > 0; i++) {
+                Card card = engine.dealCard(dealt);
+                dealt.add(card);
+
+                String text = card.toString().trim();
+                char symbol = text.charAt(text.length() - 1);
+                int suit = parseSuit(symbol);
+                if(suit != -1 && !seen[suit]) {
+                    ret[suit] = symbol;
+                    seen[suit] = true;
+                    left--;
+                }
+            }
+
+        } catch(RuntimeException re) {
+            //
+            // Keep the defaults.
+            //
+        }
+
+        return ret;
+    }
+
+    public static int parse(Card card) {
+        return parse(card.toString());
+    }
+
+    public static String toString(int card) {
+        return RANKS[rank(card)] + SUITS[suit(card)];
+    }
+
+    /**
+     *
+     * Return the set of the given simple-cards cards.
+     *
+     */
+    public static long toMask(Card[] cards) {
+        long ret = 0;
+        for(Card card: cards) {
+            ret |= mask(parse(card));
+        }
+        return ret;
+    }
+
+    /**
+     *
+     * Return the set of cards with the given text.
+     *
+     */
+    public static long toMask(String[] cards) {
+        long ret = 0;
+        for(String card: cards) {
+            ret |= mask(parse(card));
+        }
+        return ret;
+    }
+
+    /**
+     *
+     * Return the text of the cards in a set, lowest first.
+     *
+     */
+    public static String[] toStrings(long cards) {
+        String[] ret = new String[Long.bitCount(cards)];
+        int n = 0;
+        while(cards != 0) {
+            ret[n++] = toString(Long.numberOfTrailingZeros(cards));
+            cards &= cards - 1;
+        }
+        return ret;
+    }
+
+    /**
+     *
+     * Deal a random card which is not in used.
+     *
+     * @param used      Cards already dealt.
+     * @param random    Source of randomness.
+     *
+     * @return The card. Its bit is not set in used, the caller does that.
+     */
+    public static int deal(long used, Random random) {
+        long remaining = ~used & FULL_DECK;
+        int n = random.nextInt(Long.bitCount(remaining));
+        for(int i = 0; i < n; i++) {
+            remaining &= remaining - 1;
+        }
+        return Long.numberOfTrailingZeros(remaining);
+    }
+
+    /**
+     *
+     * Return how many cards of the rank are in the set.
+     *
+     */
+    public static int countRank(long cards, int rank) {
+        return Long.bitCount((cards >>> (rank << 2)) & 0xF);
+    }
+
+    /**
+     *
+     * Return the best blackjack total of a hand: aces count eleven
+     * unless that would bust it.
+     *
+     */
+    public static int blackjackValue(long hand) {
+        int total = hardValue(hand);
+        if(countRank(hand, ACE) > 0 && total + 10 <= 21) {
+            total += 10;
+        }
+        return total;
+    }
+
+    /**
+     *
+     * Return the blackjack total of a hand counting every ace as one.
+     *
+     */
+    public static int hardValue(long hand) {
+        int total = 0;
+        for(int rank = 0; rank <= ACE; rank++) {
+            total += countRank(hand, rank) * BLACKJACK_VALUES[rank];
+        }
+        return total;
+    }
+
+    public static boolean isSoft(long hand) {
+        return blackjackValue(hand) != hardValue(hand);
+    }
+
+    public static boolean isBusted(long hand) {
+        return hardValue(hand) > 21;
+    }
+
+    public static boolean isBlackjack(long hand) {
+        return Long.bitCount(hand) == 2 && blackjackValue(hand) == 21;
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.jreddit.casinobots;
+
+/**
+ *
+ * State of a game as shown in one of our game comments: the player and
+ * bet, the cards on the table, and how far the game has got.
+ *
+ * Cards are kept as their text (e.g. "10♠"), as parsed back by the
+ * bots' card engines. Immutable.
+ *
+ */
+public class GameSession {
+
+    private final String _player;
+    private final int _bet;
+    private final String[] _dealerCards;
+    private final String[] _playerCards;
+    private final int _turn;
+    private final boolean _finished;
+
+    /**
+     *
+     * @param player        The player, or null if not playing for credits.
+     * @param bet           The bet, or -1 if not playing for credits.
+     * @param dealerCards   The dealer's face up cards, empty if the game
+     *                      has no dealer.
+     * @param playerCards   The player's cards.
+     * @param turn          Number of turns played before this one.
+     * @param finished      True if the game is over.
+     *
+     */
+    public GameSession( String player,
+                        int bet,
+                        String[] dealerCards,
+                        String[] playerCards,
+                        int turn,
+                        boolean finished ) {
+        _player = player;
+        _bet = bet;
+        _dealerCards = dealerCards;
+        _playerCards = playerCards;
+        _turn = turn;
+        _finished = finished;
+    }
+
+    public String getPlayer() {
+        return _player;
+    }
+
+    public int getBet() {
+        return _bet;
+    }
+
+    public String[] getDealerCards() {
+        return (String[])_dealerCards.clone();
+    }
+
+    public String[] getPlayerCards() {
+        return (String[])_playerCards.clone();
+    }
+
+    public int getTurn() {
+        return _turn;
+    }
+
+    public boolean isFinished() {
+        return _finished;
+    }
+
+    /**
+     *
+     * Return the text of each card.
+     *
+     */
+    public static String[] toStrings(Object[] cards) {
+        String[] ret = new String[cards.length];
+        for(int i = 0; i < cards.length; i++) {
+            ret[i] = cards[i].toString();
+        }
+        return ret;
+    }
+
+    /**
+     *
+     * Join cards with spaces, for storage.
+     *
+     */
+    static String join(String[] cards) {
+        StringBuilder sb = new StringBuilder();
+        for(String card: cards) {
+            if(sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(card);
+        }
+        return sb.toString();
+    }
+
+    static String[] split(String cards) {
+        if(cards.length() == 0) {
+            return new String[0];
+        }
+        return cards.split(" ");
+    }
+
+    public String toString() {
+        return  "player=" + _player + " bet=" + _bet +
+                " dealer=[" + join(_dealerCards) + "]" +
+                " hand=[" + join(_playerCards) + "]" +
+                " turn=" + _turn + (_finished ? " finished" : "");
+    }
+
+}
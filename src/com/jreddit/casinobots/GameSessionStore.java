@@ -0,0 +1,175 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+
+import com.almworks.sqlite4java.*;
+
+/**
+ *
+ * Game sessions of one bot, keyed by the thing name of our game
+ * comment, so that a reply to the comment can be played without
+ * fetching the comment from reddit and parsing the game back out of
+ * its markdown.
+ *
+ * The most recently used sessions are kept in memory, and every session
+ * is also written to the game_sessions table so they survive restarts.
+ * That includes the ledger backend, which keeps replies in bots.db.
+ * With the memory backend only the memory tier is used.
+ *
+ * Bots store a session when they post a game comment that still has
+ * turns to play, under the name learned from AbstractCasinoBot's
+ * postGameComment(). Replies to a comment which is not here (finished
+ * games, or a name we could not learn) fall back to fetching it.
+ *
+ */
+public class GameSessionStore {
+
+    //
+    // Number of sessions kept in memory.
+    //
+    private static final int CACHE_SIZE = 1024;
+
+    private final String _botName;
+
+    private final Map<String, GameSession> _cache =
+        new LinkedHashMap<String, GameSession>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(
+                                Map.Entry<String, GameSession> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+    public GameSessionStore(String botName) {
+        _botName = botName;
+    }
+
+    /**
+     *
+     * @param thingName The name of our game comment.
+     *
+     * @return The session, or null if there is none or on error.
+     */
+    public GameSession get(String thingName) {
+
+        synchronized(_cache) {
+            GameSession session = _cache.get(thingName);
+            if(session != null) {
+                return session;
+            }
+        }
+
+        if(!PersistenceUtils.isSQLiteInUse()) {
+            return null;
+        }
+
+        GameSession session = null;
+
+        try {
+
+            int botId = NameDictionary.getId(_botName);
+            if(botId == -1) {
+                return null;
+            }
+
+            SQLiteStatement st = SQLiteDatabase.prepareRead(
+                "SELECT player, bet, dealer_cards, player_cards, " +
+                "       turn, finished " +
+                " FROM game_sessions " +
+                " WHERE bot_id = ? AND thing_name = ?");
+            try {
+                st.bind(1, botId);
+                st.bind(2, thingName);
+                if(st.step()) {
+                    session = new GameSession(
+                                st.columnNull(0) ? null : st.columnString(0),
+                                st.columnInt(1),
+                                GameSession.split(st.columnString(2)),
+                                GameSession.split(st.columnString(3)),
+                                st.columnInt(4),
+                                st.columnInt(5) != 0 );
+                }
+            } finally {
+                st.dispose();
+            }
+
+        } catch(SQLiteException se) {
+            SQLiteDatabase.handleError(se);
+            return null;
+        }
+
+        if(session != null) {
+            synchronized(_cache) {
+                _cache.put(thingName, session);
+            }
+        }
+
+        return session;
+    }
+
+    /**
+     *
+     * Store the session of one of our game comments.
+     *
+     * @param thingName The name of our game comment.
+     *
+     */
+    public void put(String thingName, GameSession session) {
+
+        synchronized(_cache) {
+            _cache.put(thingName, session);
+        }
+
+        if(!PersistenceUtils.isSQLiteInUse()) {
+            return;
+        }
+
+        try {
+
+            SQLiteDatabase.begin();
+            boolean committed = false;
+            try {
+
+                int botId = NameDictionary.intern(_botName);
+
+                SQLiteStatement st = SQLiteDatabase.prepare(
+                    "INSERT OR REPLACE INTO game_sessions " +
+                    " (bot_id, thing_name, player, bet, dealer_cards, " +
+                    "  player_cards, turn, finished, created_at) " +
+                    " VALUES (?, ?, ?, ?, ?, ?, ?, ?, " +
+                    "         CAST(strftime('%s', 'now') AS INTEGER))" );
+                try {
+                    st.bind(1, botId);
+                    st.bind(2, thingName);
+                    if(session.getPlayer() == null) {
+                        st.bindNull(3);
+                    } else {
+                        st.bind(3, session.getPlayer());
+                    }
+                    st.bind(4, session.getBet());
+                    st.bind(5, GameSession.join(session.getDealerCards()));
+                    st.bind(6, GameSession.join(session.getPlayerCards()));
+                    st.bind(7, session.getTurn());
+                    st.bind(8, session.isFinished() ? 1 : 0);
+                    st.step();
+                } finally {
+                    st.dispose();
+                }
+
+                SQLiteDatabase.commit();
+                committed = true;
+
+            } finally {
+                if(!committed) {
+                    SQLiteDatabase.rollback();
+                }
+            }
+
+        } catch(SQLiteException se) {
+            //
+            // Still cached, and the comment can be parsed again.
+            //
+            SQLiteDatabase.handleError(se);
+        }
+    }
+
+}
@@ -0,0 +1,282 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *
+ * Exact expected value of every hold in video poker.
+ *
+ * For each of the 32 ways to hold a five card hand, every possible draw
+ * from the 47 unseen cards is scored with the PokerEvaluator, up to
+ * C(47, 5) = 1,533,939 draws for discarding everything and about 2.6
+ * million over all holds. The work is split across cores with fork/join,
+ * one task per hold and first drawn card.
+ *
+ * Suits are interchangeable, so results are memoized by the hand's
+ * canonical form: the smallest Cards mask over the 24 ways to relabel
+ * its suits.
+ *
+ */
+public class HoldAdvisor {
+
+    public static final int HOLDS = 32;
+
+    private static final int HAND_SIZE = 5;
+
+    //
+    // Canonical hands whose hold values are kept.
+    //
+    private static final int CACHE_SIZE = 4096;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+
+    //
+    // Every permutation of the four suits.
+    //
+    private static final int[][] SUIT_PERMUTATIONS = new int[24][];
+
+    static {
+        int n = 0;
+        for(int a = 0; a < 4; a++)
+        for(int b = 0; b < 4; b++)
+        for(int c = 0; c < 4; c++)
+        for(int d = 0; d < 4; d++) {
+            if(a != b && a != c && a != d && b != c && b != d && c != d) {
+                SUIT_PERMUTATIONS[n++] = new int[] { a, b, c, d };
+            }
+        }
+    }
+
+    private static final Map<Long, double[]> CACHE =
+        new LinkedHashMap<Long, double[]>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(
+                                    Map.Entry<Long, double[]> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+    /**
+     *
+     * Return the expected payout multiplier of each hold.
+     *
+     * @param cards The five cards of the hand, in the player's order.
+     *
+     * @return The expected multiplier, indexed by hold: bit i of the
+     *         index set holds cards[i].
+     */
+    public static double[] getHoldValues(int[] cards) {
+
+        long hand = 0;
+        for(int card: cards) {
+            hand |= Cards.mask(card);
+        }
+
+        //
+        // Find the canonical hand, and where each card ends up in it.
+        //
+        int[] best = null;
+        long canonical = Long.MAX_VALUE;
+        for(int[] perm: SUIT_PERMUTATIONS) {
+            long mask = relabel(hand, perm);
+            if(mask < canonical) {
+                canonical = mask;
+                best = perm;
+            }
+        }
+
+        double[] values;
+        synchronized(CACHE) {
+            values = CACHE.get(Long.valueOf(canonical));
+        }
+        if(values == null) {
+            values = solve(canonical);
+            synchronized(CACHE) {
+                CACHE.put(Long.valueOf(canonical), values);
+            }
+        }
+
+        //
+        // values is indexed by the canonical hand's cards, lowest first.
+        //
+        int[] position = new int[HAND_SIZE];
+        for(int i = 0; i < HAND_SIZE; i++) {
+            long image = Cards.mask(Cards.card( Cards.rank(cards[i]),
+                                                best[Cards.suit(cards[i])] ));
+            position[i] = Long.bitCount(canonical & (image - 1));
+        }
+
+        double[] ret = new double[HOLDS];
+        for(int hold = 0; hold < HOLDS; hold++) {
+            int canonicalHold = 0;
+            for(int i = 0; i < HAND_SIZE; i++) {
+                if((hold & (1 << i)) != 0) {
+                    canonicalHold |= 1 << position[i];
+                }
+            }
+            ret[hold] = values[canonicalHold];
+        }
+        return ret;
+    }
+
+    /**
+     *
+     * Return the hold with the highest expected value.
+     *
+     */
+    public static int getBestHold(double[] values) {
+        int best = 0;
+        for(int hold = 1; hold < HOLDS; hold++) {
+            if(values[hold] > values[best]) {
+                best = hold;
+            }
+        }
+        return best;
+    }
+
+    /**
+     *
+     * Return the hold as a VideopokerBot command, e.g. "xxxoo".
+     *
+     */
+    public static String toCommand(int hold) {
+        StringBuilder sb = new StringBuilder(HAND_SIZE);
+        for(int i = 0; i < HAND_SIZE; i++) {
+            sb.append((hold & (1 << i)) != 0 ? 'x' : 'o');
+        }
+        return sb.toString();
+    }
+
+    private static long relabel(long hand, int[] perm) {
+        long ret = 0;
+        while(hand != 0) {
+            int card = Long.numberOfTrailingZeros(hand);
+            hand &= hand - 1;
+            ret |= Cards.mask(Cards.card(Cards.rank(card), perm[Cards.suit(card)]));
+        }
+        return ret;
+    }
+
+    /**
+     *
+     * Compute the hold values of a hand, indexed by holds of its cards
+     * lowest first.
+     *
+     */
+    private static double[] solve(long hand) {
+
+        int[] cards = new int[HAND_SIZE];
+        long h = hand;
+        for(int i = 0; i < HAND_SIZE; i++) {
+            cards[i] = Long.numberOfTrailingZeros(h);
+            h &= h - 1;
+        }
+
+        int[] deck = new int[Cards.DECK_SIZE - HAND_SIZE];
+        long rest = Cards.FULL_DECK & ~hand;
+        for(int i = 0; i < deck.length; i++) {
+            deck[i] = Long.numberOfTrailingZeros(rest);
+            rest &= rest - 1;
+        }
+
+        //
+        // One task per hold and first drawn card.
+        //
+        List<DrawTask> tasks = new ArrayList<DrawTask>();
+        for(int hold = 0; hold < HOLDS; hold++) {
+            long held = 0;
+            for(int i = 0; i < HAND_SIZE; i++) {
+                if((hold & (1 << i)) != 0) {
+                    held |= Cards.mask(cards[i]);
+                }
+            }
+            int draws = HAND_SIZE - Long.bitCount(held);
+            if(draws == 0) {
+                tasks.add(new DrawTask(hold, deck, held, 0, -1));
+            } else {
+                for(int first = 0; first <= deck.length - draws; first++) {
+                    tasks.add(new DrawTask(hold, deck, held, draws, first));
+                }
+            }
+        }
+
+        POOL.invoke(new Solver(tasks));
+
+        long[] totals = new long[HOLDS];
+        long[] counts = new long[HOLDS];
+        for(DrawTask task: tasks) {
+            totals[task.hold] += task.total;
+            counts[task.hold] += task.count;
+        }
+
+        double[] ret = new double[HOLDS];
+        for(int hold = 0; hold < HOLDS; hold++) {
+            ret[hold] = (double)totals[hold] / counts[hold];
+        }
+        return ret;
+    }
+
+    private static class Solver extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<DrawTask> _tasks;
+
+        Solver(List<DrawTask> tasks) {
+            _tasks = tasks;
+        }
+
+        protected void compute() {
+            invokeAll(_tasks);
+        }
+    }
+
+    /**
+     *
+     * Sum the multipliers of every draw to a hold whose lowest drawn
+     * card is deck[first].
+     *
+     */
+    private static class DrawTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        final int hold;
+        private final int[] _deck;
+        private final long _held;
+        private final int _draws;
+        private final int _first;
+
+        long total = 0;
+        long count = 0;
+
+        DrawTask(int hold, int[] deck, long held, int draws, int first) {
+            this.hold = hold;
+            _deck = deck;
+            _held = held;
+            _draws = draws;
+            _first = first;
+        }
+
+        protected void compute() {
+            if(_draws == 0) {
+                total = PokerEvaluator.getMultiplier(_held);
+                count = 1;
+                return;
+            }
+            draw(_first + 1, _draws - 1, _held | Cards.mask(_deck[_first]));
+        }
+
+        private void draw(int start, int left, long hand) {
+            if(left == 0) {
+                total += PokerEvaluator.getMultiplier(hand);
+                count++;
+                return;
+            }
+            for(int i = start; i <= _deck.length - left; i++) {
+                draw(i + 1, left - 1, hand | Cards.mask(_deck[i]));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+
+/**
+ *
+ * In memory ranking of all bank balances.
+ *
+ * Accounts are kept in a treap ordered by balance (highest first, ties
+ * by name) where each node knows the size of its subtree, so top N
+ * and "what is my rank" are answered in O(log n) (plus N for the top N
+ * listing) without touching the db. PersistenceUtils keeps it up to
+ * date on every bank change.
+ *
+ */
+public class Leaderboard {
+
+    private static class Node {
+        final String name;
+        final int balance;
+        final int priority;
+        int size = 1;
+        Node left;
+        Node right;
+
+        Node(String name, int balance, int priority) {
+            this.name = name;
+            this.balance = balance;
+            this.priority = priority;
+        }
+    }
+
+    private Node _root;
+
+    private final Map<String, Node> _accounts = new HashMap<String, Node>();
+
+    private final Random _random = new Random();
+
+    /**
+     *
+     * Set a player's balance, adding the player if necessary.
+     *
+     */
+    public synchronized void update(String player, int balance) {
+        Node old = _accounts.get(player);
+        if(old != null) {
+            if(old.balance == balance) {
+                return;
+            }
+            _root = remove(_root, old);
+        }
+        Node node = new Node(player, balance, _random.nextInt());
+        _accounts.put(player, node);
+        _root = insert(_root, node);
+    }
+
+    /**
+     *
+     * Set a player's balance only if the player is not already ranked.
+     *
+     * Used while loading from the db, so that a change made during the
+     * load is not overwritten by the older value read from the table.
+     *
+     */
+    public synchronized void updateIfAbsent(String player, int balance) {
+        if(!_accounts.containsKey(player)) {
+            update(player, balance);
+        }
+    }
+
+    /**
+     *
+     * Return the top players, highest balance first.
+     *
+     * @param limit     Number of players to return.
+     *
+     */
+    public synchronized AccountInfo[] getTop(int limit) {
+        List<AccountInfo> ret = new ArrayList<AccountInfo>();
+        collect(_root, ret, limit);
+        return (AccountInfo[])ret.toArray(new AccountInfo[0]);
+    }
+
+    /**
+     *
+     * Return the player's rank, 1 being the highest balance.
+     *
+     * @return The rank, or -1 if the player has no account.
+     */
+    public synchronized int getRank(String player) {
+        Node node = _accounts.get(player);
+        if(node == null) {
+            return -1;
+        }
+
+        //
+        // Count the nodes ordered before this one.
+        //
+        int before = 0;
+        Node t = _root;
+        while(t != null) {
+            int c = compare(node, t);
+            if(c == 0) {
+                before += size(t.left);
+                break;
+            } else if(c < 0) {
+                t = t.left;
+            } else {
+                before += size(t.left) + 1;
+                t = t.right;
+            }
+        }
+        return before + 1;
+    }
+
+    /**
+     *
+     * Return the number of ranked players.
+     *
+     */
+    public synchronized int size() {
+        return size(_root);
+    }
+
+    //
+    // Treap internals.
+    //
+
+    private static int compare(Node a, Node b) {
+        if(a.balance != b.balance) {
+            return a.balance > b.balance ? -1 : 1;
+        }
+        return a.name.compareTo(b.name);
+    }
+
+    private static int size(Node t) {
+        return t == null ? 0 : t.size;
+    }
+
+    private static Node fix(Node t) {
+        t.size = 1 + size(t.left) + size(t.right);
+        return t;
+    }
+
+    private static Node insert(Node t, Node node) {
+        if(t == null) {
+            return node;
+        }
+        if(node.priority > t.priority) {
+            Node[] parts = split(t, node);
+            node.left = parts[0];
+            node.right = parts[1];
+            return fix(node);
+        }
+        if(compare(node, t) < 0) {
+            t.left = insert(t.left, node);
+        } else {
+            t.right = insert(t.right, node);
+        }
+        return fix(t);
+    }
+
+    private static Node remove(Node t, Node node) {
+        if(t == null) {
+            return null;
+        }
+        if(t == node) {
+            return merge(t.left, t.right);
+        }
+        if(compare(node, t) < 0) {
+            t.left = remove(t.left, node);
+        } else {
+            t.right = remove(t.right, node);
+        }
+        return fix(t);
+    }
+
+    /**
+     * Split into nodes ordered before key, and the rest.
+     */
+    private static Node[] split(Node t, Node key) {
+        if(t == null) {
+            return new Node[] { null, null };
+        }
+        if(compare(t, key) < 0) {
+            Node[] parts = split(t.right, key);
+            t.right = parts[0];
+            return new Node[] { fix(t), parts[1] };
+        } else {
+            Node[] parts = split(t.left, key);
+            t.left = parts[1];
+            return new Node[] { parts[0], fix(t) };
+        }
+    }
+
+    private static Node merge(Node a, Node b) {
+        if(a == null) {
+            return b;
+        }
+        if(b == null) {
+            return a;
+        }
+        if(a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            return fix(a);
+        } else {
+            b.left = merge(a, b.left);
+            return fix(b);
+        }
+    }
+
+    private static void collect(Node t, List<AccountInfo> out, int limit) {
+        if(t == null || out.size() >= limit) {
+            return;
+        }
+        collect(t.left, out, limit);
+        if(out.size() < limit) {
+            out.add(new AccountInfo(t.name, t.balance));
+        }
+        collect(t.right, out, limit);
+    }
+
+}
@@ -0,0 +1,487 @@
+package com.jreddit.casinobots;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ *
+ * BankStore kept as an append-only ledger.
+ *
+ * Balances live in memory. Every change is appended to a memory mapped
+ * log file (bank.log) as one record:
+ *
+ *      int     length of the body
+ *      int     CRC32 of the body
+ *      body:
+ *          long    sequence number
+ *          long    time, millis
+ *          byte    'U'psert, 'C'redit or 'D'ebit
+ *          int     amount
+ *          int     resulting balance
+ *          UTF     player name
+ *          UTF     game        (see PersistenceUtils.getBankReference())
+ *          UTF     reference thing
+ *
+ * Records hold the player's name, not the NameDictionary id the sqlite
+ * tables use, so the log reads on its own. Game and reference thing
+ * are empty for changes made without one (e.g. admin tools).
+ *
+ * so a change is one sequential write instead of a random write to a
+ * b-tree. At startup the balances are read from the latest snapshot
+ * (bank.snapshot) and the log records after it are replayed. Records
+ * carry the resulting balance, so replaying one twice is harmless, and a
+ * torn record at the end of the log (CRC mismatch) is dropped.
+ *
+ * Once the log passes COMPACT_BYTES it is compacted: the balances are
+ * written to a new snapshot, which is renamed over the old one, and the
+ * log is renamed to bank.log.<last sequence> and kept as the audit trail
+ * of that period, and a new log started. Only the newest archived logs
+ * are kept (see PersistenceUtils.configure(), ledger.archives); copy
+ * them elsewhere first if the whole trail is wanted.
+ *
+ * A new ledger, with neither snapshot nor log, starts from the balances
+ * in the sqlite bank table, so switching an existing bots.db over to
+ * the ledger keeps every account.
+ *
+ */
+public class LedgerBankStore implements BankStore {
+
+    //
+    // Mapped region of the log, grown by doubling as needed.
+    //
+    private static final int INITIAL_MAP_BYTES = 16 * 1024 * 1024;
+
+    //
+    // Compact once the log is this long.
+    //
+    private static final int COMPACT_BYTES = 64 * 1024 * 1024;
+
+    private static final int HEADER_BYTES = 8;
+
+    private static final String LOG_FILE        = "bank.log";
+    private static final String SNAPSHOT_FILE   = "bank.snapshot";
+
+    private final File _dir;
+
+    // Number of archived logs to keep, 0 to keep them all.
+    private final int _keepArchives;
+
+    private final Map<String, Integer> _balances =
+                                            new HashMap<String, Integer>();
+
+    private RandomAccessFile _logFile;
+    private MappedByteBuffer _log;
+
+    // Sequence number of the last record written.
+    private long _seq = 0;
+
+    private final CRC32 _crc = new CRC32();
+
+    /**
+     *
+     * Open the ledger in the given directory, creating it if necessary,
+     * and rebuild the balances.
+     *
+     * @param keepArchives  Number of archived logs to keep, 0 to keep
+     *                      them all.
+     *
+     */
+    public LedgerBankStore(File dir, int keepArchives) throws IOException {
+        _dir = dir;
+        _keepArchives = keepArchives;
+        if(!_dir.isDirectory() && !_dir.mkdirs()) {
+            throw new IOException("Cannot create ledger directory " + dir);
+        }
+
+        long start = System.currentTimeMillis();
+
+        if( !new File(_dir, SNAPSHOT_FILE).exists() &&
+            !new File(_dir, LOG_FILE).exists() ) {
+            seed();
+        }
+
+        long snapshotSeq = readSnapshot();
+        _seq = snapshotSeq;
+        int replayed = openLog(snapshotSeq);
+
+        SQLiteDatabase.log(
+            "Loaded bank ledger with " + _balances.size() + " accounts, " +
+            replayed + " log records replayed, in " +
+            (System.currentTimeMillis() - start) + "ms.");
+    }
+
+    public synchronized int getBalance(String player) {
+        Integer bal = _balances.get(player);
+        return bal == null ? -1 : bal.intValue();
+    }
+
+    public synchronized BalanceMap getBalances(Collection<String> players) {
+        BalanceMap ret = new BalanceMap(players.size());
+        for(String player: players) {
+            Integer bal = _balances.get(player);
+            if(bal != null) {
+                ret.put(player, bal.intValue());
+            }
+        }
+        return ret;
+    }
+
+    public synchronized int upsertBalance(String player, int balance) {
+        return append('U', player, balance, balance);
+    }
+
+    public synchronized int creditBalance(String player, int amount) {
+        Integer old = _balances.get(player);
+        int bal = (old == null ? 0 : old.intValue()) + amount;
+        return append('C', player, amount, bal);
+    }
+
+    public synchronized int debitBalance(String player, int amount) {
+        Integer old = _balances.get(player);
+        if(old == null || old.intValue() < amount) {
+            return -1;
+        }
+        return append('D', player, amount, old.intValue() - amount);
+    }
+
+    public synchronized List<AccountInfo> getAccounts() {
+        List<AccountInfo> ret = new ArrayList<AccountInfo>();
+        for(Map.Entry<String, Integer> entry: _balances.entrySet()) {
+            ret.add(new AccountInfo(entry.getKey(), entry.getValue().intValue()));
+        }
+        return ret;
+    }
+
+    public AccountInfo[] getLeaders(int limit) {
+        Leaderboard leaderboard = new Leaderboard();
+        for(AccountInfo account: getAccounts()) {
+            leaderboard.update(account.getName(), account.getBalance());
+        }
+        return leaderboard.getTop(limit);
+    }
+
+    /**
+     *
+     * Append a change to the log, and apply it once it is written.
+     *
+     * @return The new balance, or -1 if it could not be written, in
+     *         which case nothing changed.
+     */
+    private int append(char kind, String player, int amount, int balance) {
+
+        String[] ref = PersistenceUtils.getBankReference();
+
+        try {
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(_seq + 1);
+            out.writeLong(System.currentTimeMillis());
+            out.writeByte(kind);
+            out.writeInt(amount);
+            out.writeInt(balance);
+            out.writeUTF(player);
+            out.writeUTF(ref == null ? "" : ref[0]);
+            out.writeUTF(ref == null ? "" : ref[1]);
+            out.close();
+            byte[] body = bytes.toByteArray();
+
+            ensureCapacity(HEADER_BYTES + body.length);
+
+            _crc.reset();
+            _crc.update(body, 0, body.length);
+
+            //
+            // Write the body before the length, so a record is never
+            // seen with a length but no body.
+            //
+            int pos = _log.position();
+            _log.position(pos + HEADER_BYTES);
+            _log.put(body);
+            _log.putInt(pos + 4, (int)_crc.getValue());
+            _log.putInt(pos, body.length);
+            _log.force();
+
+            _seq++;
+            _balances.put(player, Integer.valueOf(balance));
+
+        } catch(IOException ioe) {
+            ioe.printStackTrace();
+            SQLiteDatabase.log("SEVERE error writing bank ledger.");
+            return -1;
+        }
+
+        if(_log.position() >= COMPACT_BYTES) {
+            try {
+                compact();
+            } catch(IOException ioe) {
+                //
+                // The change is in the log, compaction is retried on
+                // the next append.
+                //
+                ioe.printStackTrace();
+                SQLiteDatabase.log("ERROR compacting bank ledger.");
+            }
+        }
+
+        return balance;
+    }
+
+    /**
+     *
+     * Remap the log larger if the next record would not fit.
+     *
+     */
+    private void ensureCapacity(int bytes) throws IOException {
+        if(_log.remaining() >= bytes) {
+            return;
+        }
+        int pos = _log.position();
+        long size = _log.capacity();
+        while(size - pos < bytes) {
+            size *= 2;
+        }
+        _log.force();
+        _log = _logFile.getChannel().map(
+                            FileChannel.MapMode.READ_WRITE, 0, size);
+        _log.position(pos);
+    }
+
+    /**
+     *
+     * Write a snapshot of every balance and start a new log, keeping
+     * the old one as bank.log.<sequence>.
+     *
+     */
+    private void compact() throws IOException {
+
+        long start = System.currentTimeMillis();
+
+        //
+        // From here the snapshot covers the whole log. If we stop
+        // before the log is replaced, its records are skipped at
+        // startup by sequence number.
+        //
+        writeSnapshot();
+
+        //
+        // Drop the unused end of the mapping from the archived log.
+        //
+        _log.force();
+        _logFile.setLength(_log.position());
+        _logFile.close();
+        File log = new File(_dir, LOG_FILE);
+        if(!log.renameTo(new File(_dir, LOG_FILE + "." + _seq))) {
+            throw new IOException("Cannot archive ledger log");
+        }
+        openLog(_seq);
+
+        int removed = removeOldArchives();
+
+        SQLiteDatabase.log(
+            "Compacted bank ledger at sequence " + _seq + " in " +
+            (System.currentTimeMillis() - start) + "ms" +
+            (removed > 0 ? ", removed " + removed + " old logs." : "."));
+    }
+
+    /**
+     *
+     * Write the balances to a new snapshot at the current sequence
+     * number, and rename it over the old one.
+     *
+     */
+    private void writeSnapshot() throws IOException {
+
+        File tmp = new File(_dir, SNAPSHOT_FILE + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(
+                                        new BufferedOutputStream(fos));
+            out.writeLong(_seq);
+            out.writeInt(_balances.size());
+            for(Map.Entry<String, Integer> entry: _balances.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().intValue());
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+
+        if(!tmp.renameTo(new File(_dir, SNAPSHOT_FILE))) {
+            throw new IOException("Cannot replace ledger snapshot");
+        }
+    }
+
+    /**
+     *
+     * Start a new ledger from the sqlite bank table, as a snapshot at
+     * sequence 0.
+     *
+     */
+    private void seed() throws IOException {
+
+        List<AccountInfo> accounts = new SQLiteBankStore().getAccounts();
+        if(accounts == null) {
+            //
+            // Better not to start at all than to start with every
+            // account missing.
+            //
+            throw new IOException("Cannot read the bank table to seed ledger");
+        }
+
+        for(AccountInfo account: accounts) {
+            _balances.put(  account.getName(), 
+                            Integer.valueOf(account.getBalance()) );
+        }
+        writeSnapshot();
+        _balances.clear();
+
+        SQLiteDatabase.log(
+            "Seeded bank ledger with " + accounts.size() + 
+            " accounts from the bank table.");
+    }
+
+    /**
+     *
+     * Delete all but the newest _keepArchives archived logs.
+     *
+     * @return The number of logs deleted.
+     */
+    private int removeOldArchives() {
+
+        if(_keepArchives <= 0) {
+            return 0;
+        }
+
+        //
+        // Archives are named by the sequence number they end at.
+        //
+        final String prefix = LOG_FILE + ".";
+        File[] files = _dir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return  name.startsWith(prefix) && 
+                        name.substring(prefix.length()).matches("\\d+");
+            }
+        });
+        if(files == null || files.length <= _keepArchives) {
+            return 0;
+        }
+
+        long[] seqs = new long[files.length];
+        for(int i = 0; i < files.length; i++) {
+            seqs[i] = Long.parseLong(
+                            files[i].getName().substring(prefix.length()));
+        }
+        Arrays.sort(seqs);
+
+        int removed = 0;
+        for(int i = 0; i < seqs.length - _keepArchives; i++) {
+            File file = new File(_dir, prefix + seqs[i]);
+            if(file.delete()) {
+                removed++;
+            } else {
+                SQLiteDatabase.log("WARN cannot delete old ledger log " + file);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     *
+     * Read the snapshot into the balances.
+     *
+     * @return The sequence number the snapshot was taken at, or 0 if
+     *         there is none.
+     */
+    private long readSnapshot() throws IOException {
+        File file = new File(_dir, SNAPSHOT_FILE);
+        if(!file.exists()) {
+            return 0;
+        }
+        DataInputStream in = new DataInputStream(
+                                new BufferedInputStream(
+                                    new FileInputStream(file)));
+        try {
+            long seq = in.readLong();
+            int count = in.readInt();
+            for(int i = 0; i < count; i++) {
+                String player = in.readUTF();
+                _balances.put(player, Integer.valueOf(in.readInt()));
+            }
+            return seq;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     *
+     * Map the log, replay the records after the snapshot, and position
+     * it for appending after the last good record.
+     *
+     * @return The number of records replayed.
+     */
+    private int openLog(long snapshotSeq) throws IOException {
+
+        _logFile = new RandomAccessFile(new File(_dir, LOG_FILE), "rw");
+        long size = Math.max(INITIAL_MAP_BYTES, _logFile.length());
+        _log = _logFile.getChannel().map(
+                            FileChannel.MapMode.READ_WRITE, 0, size);
+
+        int replayed = 0;
+
+        while(_log.remaining() >= HEADER_BYTES) {
+
+            int pos = _log.position();
+            int length = _log.getInt();
+            int crc = _log.getInt();
+            if(length <= 0 || length > _log.remaining()) {
+                _log.position(pos);
+                break;
+            }
+
+            byte[] body = new byte[length];
+            _log.get(body);
+            _crc.reset();
+            _crc.update(body, 0, length);
+            if((int)_crc.getValue() != crc) {
+                SQLiteDatabase.log(
+                    "Dropping torn bank ledger record at " + pos);
+                _log.position(pos);
+                break;
+            }
+
+            DataInputStream in = new DataInputStream(
+                                    new ByteArrayInputStream(body));
+            long seq = in.readLong();
+            in.readLong();      // time
+            in.readByte();      // kind
+            in.readInt();       // amount
+            int balance = in.readInt();
+            String player = in.readUTF();
+
+            if(seq > snapshotSeq) {
+                _balances.put(player, Integer.valueOf(balance));
+                replayed++;
+            }
+            _seq = Math.max(_seq, seq);
+        }
+
+        //
+        // Clear anything after the last good record, so a torn record
+        // is not mistaken for part of the next one.
+        //
+        int end = _log.position();
+        for(int i = end; i < Math.min(end + HEADER_BYTES, _log.capacity()); i++) {
+            _log.put(i, (byte)0);
+        }
+
+        return replayed;
+    }
+
+}
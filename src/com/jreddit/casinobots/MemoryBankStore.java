@@ -0,0 +1,93 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *
+ * BankStore kept entirely in memory, for simulations and benchmarks.
+ *
+ * Nothing is persisted. Every change is a compare-and-set on a
+ * concurrent map, so it is safe without the player locks.
+ *
+ */
+public class MemoryBankStore implements BankStore {
+
+    private final ConcurrentMap<String, Integer> _balances =
+                                new ConcurrentHashMap<String, Integer>();
+
+    public int getBalance(String player) {
+        Integer bal = _balances.get(player);
+        return bal == null ? -1 : bal.intValue();
+    }
+
+    public BalanceMap getBalances(Collection<String> players) {
+        BalanceMap ret = new BalanceMap(players.size());
+        for(String player: players) {
+            Integer bal = _balances.get(player);
+            if(bal != null) {
+                ret.put(player, bal.intValue());
+            }
+        }
+        return ret;
+    }
+
+    public int upsertBalance(String player, int balance) {
+        _balances.put(player, Integer.valueOf(balance));
+        return balance;
+    }
+
+    public int creditBalance(String player, int amount) {
+        while(true) {
+            Integer old = _balances.get(player);
+            if(old == null) {
+                if(_balances.putIfAbsent(player, Integer.valueOf(amount)) == null) {
+                    return amount;
+                }
+            } else {
+                int bal = old.intValue() + amount;
+                if(_balances.replace(player, old, Integer.valueOf(bal))) {
+                    return bal;
+                }
+            }
+        }
+    }
+
+    public int debitBalance(String player, int amount) {
+        while(true) {
+            Integer old = _balances.get(player);
+            if(old == null || old.intValue() < amount) {
+                return -1;
+            }
+            int bal = old.intValue() - amount;
+            if(_balances.replace(player, old, Integer.valueOf(bal))) {
+                return bal;
+            }
+        }
+    }
+
+    public List<AccountInfo> getAccounts() {
+        List<AccountInfo> ret = new ArrayList<AccountInfo>();
+        for(Map.Entry<String, Integer> entry: _balances.entrySet()) {
+            ret.add(new AccountInfo(entry.getKey(), entry.getValue().intValue()));
+        }
+        return ret;
+    }
+
+    public AccountInfo[] getLeaders(int limit) {
+        List<AccountInfo> accounts = getAccounts();
+        Collections.sort(accounts, new Comparator<AccountInfo>() {
+            public int compare(AccountInfo a, AccountInfo b) {
+                if(a.getBalance() != b.getBalance()) {
+                    return a.getBalance() > b.getBalance() ? -1 : 1;
+                }
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        if(accounts.size() > limit) {
+            accounts = accounts.subList(0, limit);
+        }
+        return (AccountInfo[])accounts.toArray(new AccountInfo[0]);
+    }
+
+}
@@ -0,0 +1,57 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ *
+ * ReplyStore kept entirely in memory, for simulations and benchmarks.
+ *
+ * Nothing is persisted.
+ *
+ */
+public class MemoryReplyStore implements ReplyStore {
+
+    private final ConcurrentMap<String, Set<String>> _replies =
+                                new ConcurrentHashMap<String, Set<String>>();
+
+    public Boolean isReplied(String botName, String thingName) {
+        Set<String> replies = _replies.get(botName);
+        return Boolean.valueOf(replies != null && replies.contains(thingName));
+    }
+
+    public void setReplied( String botName, 
+                            String thingName, 
+                            boolean permanent ) {
+        getSet(botName).add(thingName);
+    }
+
+    public int countReplies(String botName) {
+        Set<String> replies = _replies.get(botName);
+        return replies == null ? 0 : replies.size();
+    }
+
+    public List<String> getReplies(String botName) {
+        Set<String> replies = _replies.get(botName);
+        if(replies == null) {
+            return new ArrayList<String>();
+        }
+        return new ArrayList<String>(replies);
+    }
+
+    public void flush() { }
+
+    private Set<String> getSet(String botName) {
+        Set<String> replies = _replies.get(botName);
+        if(replies == null) {
+            Set<String> set = Collections.newSetFromMap(
+                                new ConcurrentHashMap<String, Boolean>());
+            replies = _replies.putIfAbsent(botName, set);
+            if(replies == null) {
+                replies = set;
+            }
+        }
+        return replies;
+    }
+
+}
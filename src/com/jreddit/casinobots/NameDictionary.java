@@ -0,0 +1,108 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.almworks.sqlite4java.*;
+
+/**
+ *
+ * Interned player and bot names.
+ *
+ * The bank and bot_replies tables store a small integer id from the
+ * names table in place of each name, so their rows and index pages
+ * are smaller and lookups compare integers. Ids never change once
+ * assigned, so they are cached here for the life of the process.
+ *
+ */
+public class NameDictionary {
+
+    private static final ConcurrentMap<String, Integer> IDS =
+                                new ConcurrentHashMap<String, Integer>();
+
+    /**
+     *
+     * Return the id of a name, without assigning one.
+     *
+     * @return The id, or -1 if the name has none.
+     */
+    public static int getId(String name) throws SQLiteException {
+
+        Integer id = IDS.get(name);
+        if(id != null) {
+            return id.intValue();
+        }
+
+        int ret = queryId(name);
+        if(ret != -1) {
+            cache(name, ret);
+        }
+        return ret;
+    }
+
+    /**
+     *
+     * Return the id of a name, assigning one if it has none.
+     *
+     * Inside a transaction the new id only becomes visible to other
+     * threads once the transaction commits.
+     *
+     */
+    public static int intern(String name) throws SQLiteException {
+
+        int ret = getId(name);
+        if(ret != -1) {
+            return ret;
+        }
+
+        SQLiteStatement st = SQLiteDatabase.prepare(
+            "INSERT OR IGNORE INTO names (name) VALUES (?)");
+        try {
+            st.bind(1, name);
+            st.step();
+        } finally {
+            st.dispose();
+        }
+
+        //
+        // Read it back rather than use the last rowid, in case another
+        // connection inserted it first.
+        //
+        ret = queryId(name);
+        if(ret == -1) {
+            throw new SQLiteException(SQLiteConstants.SQLITE_INTERNAL,
+                                        "Name not interned: " + name);
+        }
+        cache(name, ret);
+        return ret;
+    }
+
+    private static int queryId(String name) throws SQLiteException {
+        SQLiteStatement st = SQLiteDatabase.prepareRead(
+            "SELECT name_id FROM names WHERE name = ?");
+        try {
+            st.bind(1, name);
+            if(st.step()) {
+                return st.columnInt(0);
+            }
+            return -1;
+        } finally {
+            st.dispose();
+        }
+    }
+
+    /**
+     *
+     * Cache an id once it is committed. An id inserted by a transaction
+     * which then rolls back is never cached.
+     *
+     */
+    private static void cache(final String name, final int id) {
+        SQLiteDatabase.afterCommit(new Runnable() {
+            public void run() {
+                IDS.put(name, Integer.valueOf(id));
+            }
+        });
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.jreddit.casinobots;
+
+/**
+ *
+ * Latency and lock wait metrics of one persistence operation.
+ *
+ * Registered with JMX by PersistenceMetrics as
+ * com.jreddit.casinobots:type=Persistence,name=<operation>
+ *
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+
+    private final String _name;
+
+    private final LatencyHistogram _latency = new LatencyHistogram();
+
+    //
+    // Time spent waiting on player and write locks, per call.
+    //
+    private final LatencyHistogram _lockWait = new LatencyHistogram();
+
+    public OperationMetrics(String name) {
+        _name = name;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public void record(long nanos, long lockWaitNanos) {
+        _latency.record(nanos);
+        _lockWait.record(lockWaitNanos);
+    }
+
+    public long getCount() {
+        return _latency.getCount();
+    }
+
+    public double getMeanMicros() {
+        long count = _latency.getCount();
+        return count == 0 ? 0 : _latency.getTotalNanos() / 1000.0 / count;
+    }
+
+    public double getP50Micros() {
+        return _latency.getPercentile(0.50) / 1000.0;
+    }
+
+    public double getP99Micros() {
+        return _latency.getPercentile(0.99) / 1000.0;
+    }
+
+    public double getMaxMicros() {
+        return _latency.getMaxNanos() / 1000.0;
+    }
+
+    public double getLockWaitMeanMicros() {
+        long count = _lockWait.getCount();
+        return count == 0 ? 0 : _lockWait.getTotalNanos() / 1000.0 / count;
+    }
+
+    public double getLockWaitMaxMicros() {
+        return _lockWait.getMaxNanos() / 1000.0;
+    }
+
+    /**
+     *
+     * One line summary, for logging.
+     *
+     */
+    public String getSummary() {
+        return  _name + 
+                " n=" + getCount() +
+                " p50=" + format(getP50Micros()) +
+                " p99=" + format(getP99Micros()) +
+                " max=" + format(getMaxMicros()) +
+                " lockwait=" + format(getLockWaitMeanMicros());
+    }
+
+    private static String format(double micros) {
+        if(micros >= 1000) {
+            return String.format("%.1fms", micros / 1000);
+        }
+        return String.format("%.0fus", micros);
+    }
+
+}
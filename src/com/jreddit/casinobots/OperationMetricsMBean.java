@@ -0,0 +1,24 @@
+package com.jreddit.casinobots;
+
+/**
+ *
+ * JMX view of one persistence operation's metrics.
+ *
+ */
+public interface OperationMetricsMBean {
+
+    public long getCount();
+
+    public double getMeanMicros();
+
+    public double getP50Micros();
+
+    public double getP99Micros();
+
+    public double getMaxMicros();
+
+    public double getLockWaitMeanMicros();
+
+    public double getLockWaitMaxMicros();
+
+}
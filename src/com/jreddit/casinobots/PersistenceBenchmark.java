@@ -0,0 +1,156 @@
+package com.jreddit.casinobots;
+
+import java.io.*;
+import java.util.*;
+
+import com.almworks.sqlite4java.*;
+
+/**
+ *
+ * Persistence benchmark.
+ *
+ * Measures the per operation latency of PersistenceUtils against the
+ * old approach of opening a new connection and preparing the statement
+ * on every call.
+ *
+ * Run against a scratch copy of the db, as it writes rows for a
+ * benchmark bot and player:
+ *
+ *  $ ant benchmark -Dbenchmark.db=scratch/bench.db
+ *
+ */
+public class PersistenceBenchmark {
+
+    private static final String BOT_NAME    = "BENCHMARK_BOT";
+    private static final String PLAYER_NAME = "BENCHMARK_PLAYER";
+
+    private static final int DEFAULT_ITERATIONS = 2000;
+
+    //
+    // Names are stored as ids, see NameDictionary.
+    //
+    private static final String NAME_ID =
+                            "(SELECT name_id FROM names WHERE name = ?)";
+
+    public static void main(String[] args) throws Exception {
+
+        String dbFile = args.length > 0 ? args[0] : "scratch/bench.db";
+        int iterations = args.length > 1 ?
+                            Integer.parseInt(args[1]) : DEFAULT_ITERATIONS;
+
+        java.util.logging.Logger.getLogger("com.almworks.sqlite4java").setLevel(java.util.logging.Level.OFF);
+
+        SQLiteDatabase.setDatabaseFile(dbFile);
+
+        //
+        // Bring the schema up to date before the uncached queries run.
+        //
+        SQLiteDatabase.getConnection();
+
+        System.out.println("Database:   " + dbFile);
+        System.out.println("Iterations: " + iterations);
+        System.out.println("");
+        System.out.println(
+            String.format("%-16s %14s %14s",
+                            "operation", "open/call us", "cached us"));
+
+        report("isBotReplied",
+                uncached(dbFile, "SELECT thing_name " +
+                                 " FROM bot_replies " +
+                                 " WHERE bot_id = " + NAME_ID +
+                                 " AND thing_name = ?",
+                         iterations, 2),
+                cached(0, iterations));
+
+        report("getBankBalance",
+                uncached(dbFile, "SELECT balance " +
+                                 " FROM bank " +
+                                 " WHERE player_id = " + NAME_ID,
+                         iterations, 1),
+                cached(1, iterations));
+
+        report("setBankBalance",
+                uncached(dbFile, "UPDATE bank SET balance = ? " +
+                                 " WHERE player_id = " + NAME_ID,
+                         iterations, 2),
+                cached(2, iterations));
+
+        report("getBankLeaders",
+                uncached(dbFile, "SELECT n.name, b.balance " +
+                                 " FROM bank b JOIN names n " +
+                                 " ON n.name_id = b.player_id " +
+                                 " ORDER BY b.balance DESC LIMIT ?",
+                         iterations, 1),
+                cached(3, iterations));
+
+        SQLiteDatabase.closeConnection();
+    }
+
+    private static void report(String op, long uncachedNanos, long cachedNanos) {
+        System.out.println(
+            String.format("%-16s %14.1f %14.1f",
+                            op, uncachedNanos / 1000.0, cachedNanos / 1000.0));
+    }
+
+    /**
+     *
+     * Old behavior: new connection and statement for every call.
+     *
+     * @return Mean nanoseconds per call.
+     */
+    private static long uncached(   String dbFile,
+                                    String sql,
+                                    int iterations,
+                                    int params ) throws SQLiteException {
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            SQLiteConnection db = new SQLiteConnection(new File(dbFile));
+            db.open(true);
+            SQLiteStatement st = db.prepare(sql, false);
+            try {
+                if(params == 1) {
+                    st.bind(1, PLAYER_NAME);
+                } else {
+                    st.bind(1, BOT_NAME);
+                    st.bind(2, PLAYER_NAME);
+                }
+                while(st.step()) { }
+            } finally {
+                st.dispose();
+            }
+            db.dispose();
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    /**
+     *
+     * New behavior through PersistenceUtils.
+     *
+     * @return Mean nanoseconds per call.
+     */
+    private static long cached(int op, int iterations) {
+
+        PersistenceUtils.setBankBalance(PLAYER_NAME, 100);
+
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++) {
+            switch(op) {
+                case 0:
+                    PersistenceUtils.isBotReplied(BOT_NAME, "t1_" + i);
+                    break;
+                case 1:
+                    PersistenceUtils.getBankBalance(PLAYER_NAME);
+                    break;
+                case 2:
+                    PersistenceUtils.setBankBalance(PLAYER_NAME, i);
+                    break;
+                default:
+                    PersistenceUtils.getBankLeaders(10);
+                    break;
+            }
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.jreddit.casinobots;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.management.*;
+
+/**
+ *
+ * Per operation metrics for PersistenceUtils.
+ *
+ * Each public PersistenceUtils operation is timed with:
+ *
+ *      PersistenceMetrics.Timer timer = PersistenceMetrics.start("op");
+ *      try {
+ *          ...
+ *      } finally {
+ *          timer.stop();
+ *      }
+ *
+ * and time spent waiting on the player locks or the db write lock while
+ * it runs is charged to it through addLockWait(). Nested operations
+ * (e.g. setBotReplied() inside settleGame()) are each recorded, and a
+ * lock wait is charged to the innermost one.
+ *
+ * Every operation is published over JMX, and getSummary() gives a one
+ * line summary for the bots' periodic stats logging.
+ *
+ */
+public class PersistenceMetrics {
+
+    private static final String JMX_DOMAIN = "com.jreddit.casinobots";
+
+    //
+    // Sorted by name, for a stable summary.
+    //
+    private static final ConcurrentMap<String, OperationMetrics> OPERATIONS =
+                    new ConcurrentSkipListMap<String, OperationMetrics>();
+
+    //
+    // The innermost running operation of each thread.
+    //
+    private static final ThreadLocal<Timer> CURRENT = new ThreadLocal<Timer>();
+
+    /**
+     *
+     * A running operation.
+     *
+     */
+    public static class Timer {
+
+        private final OperationMetrics _metrics;
+        private final Timer _outer;
+        private final long _start;
+        private long _lockWait = 0;
+
+        private Timer(OperationMetrics metrics, Timer outer) {
+            _metrics = metrics;
+            _outer = outer;
+            _start = System.nanoTime();
+        }
+
+        /**
+         *
+         * Record the operation's latency and lock wait.
+         *
+         */
+        public void stop() {
+            _metrics.record(System.nanoTime() - _start, _lockWait);
+            CURRENT.set(_outer);
+        }
+    }
+
+    /**
+     *
+     * Start timing an operation on the calling thread.
+     *
+     */
+    public static Timer start(String operation) {
+        Timer timer = new Timer(getOperation(operation), CURRENT.get());
+        CURRENT.set(timer);
+        return timer;
+    }
+
+    /**
+     *
+     * Charge time spent waiting on a lock to the calling thread's
+     * current operation, if any.
+     *
+     */
+    public static void addLockWait(long nanos) {
+        Timer timer = CURRENT.get();
+        if(timer != null) {
+            timer._lockWait += nanos;
+        }
+    }
+
+    /**
+     *
+     * One line summary of every operation called so far, for logging.
+     *
+     */
+    public static String getSummary() {
+        StringBuilder sb = new StringBuilder();
+        for(OperationMetrics metrics: OPERATIONS.values()) {
+            if(metrics.getCount() == 0) {
+                continue;
+            }
+            if(sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(metrics.getSummary());
+        }
+        return sb.length() == 0 ? "no operations" : sb.toString();
+    }
+
+    private static OperationMetrics getOperation(String operation) {
+        OperationMetrics metrics = OPERATIONS.get(operation);
+        if(metrics != null) {
+            return metrics;
+        }
+
+        metrics = new OperationMetrics(operation);
+        OperationMetrics existing = OPERATIONS.putIfAbsent(operation, metrics);
+        if(existing != null) {
+            return existing;
+        }
+
+        register(metrics);
+        return metrics;
+    }
+
+    private static void register(OperationMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                metrics,
+                new ObjectName(JMX_DOMAIN + ":type=Persistence,name=" +
+                                metrics.getName()));
+        } catch(JMException jme) {
+            //
+            // Metrics are still logged, just not over JMX.
+            //
+            SQLiteDatabase.log(
+                "Cannot register JMX metrics for " + metrics.getName() + 
+                ": " + jme);
+        }
+    }
+
+}
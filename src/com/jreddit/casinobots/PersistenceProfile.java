@@ -0,0 +1,198 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+
+import com.almworks.sqlite4java.*;
+
+/**
+ *
+ * SQLite performance settings, read from a bot's config.properties.
+ *
+ *  db.journalMode          DELETE, TRUNCATE, PERSIST, MEMORY, WAL or OFF
+ *  db.synchronous          OFF, NORMAL, FULL or EXTRA
+ *  db.mmapSize             Bytes of the db file to memory map
+ *  db.cacheSize            Page cache size, pages or (negative) KiB
+ *  db.busyTimeout          Milliseconds to wait on another writer
+ *  db.checkpointSeconds    Seconds between background WAL checkpoints
+ *  db.replyRetentionDays   Days to keep bot_replies rows other than turn
+ *                          markers, 0 keeps them all forever
+ *  db.retentionMinutes     Minutes between retention passes
+ *
+ * Anything not set keeps sqlite's default, so a config without any db.*
+ * keys behaves as before, apart from reply retention.
+ *
+ */
+public class PersistenceProfile {
+
+    private static final List<String> JOURNAL_MODES = Arrays.asList(
+        "DELETE", "TRUNCATE", "PERSIST", "MEMORY", "WAL", "OFF" );
+
+    private static final List<String> SYNCHRONOUS_LEVELS = Arrays.asList(
+        "OFF", "NORMAL", "FULL", "EXTRA" );
+
+    private static final long DEFAULT_BUSY_TIMEOUT_MS = 10000;
+
+    private static final int DEFAULT_CHECKPOINT_SECONDS = 60;
+
+    //
+    // Requests and messages older than _replyAfterDate, at most the
+    // bot's downtime, are never replied to again, so their markers can
+    // go after that. A month is plenty. Turn markers are permanent and
+    // never pruned, see ReplyRetention.
+    //
+    private static final int DEFAULT_REPLY_RETENTION_DAYS = 30;
+
+    private static final int DEFAULT_RETENTION_MINUTES = 60;
+
+    private String _journalMode = null;
+    private String _synchronous = null;
+    private Long _mmapSize      = null;
+    private Integer _cacheSize  = null;
+    private long _busyTimeout   = DEFAULT_BUSY_TIMEOUT_MS;
+    private int _checkpointSeconds = DEFAULT_CHECKPOINT_SECONDS;
+    private int _replyRetentionDays = DEFAULT_REPLY_RETENTION_DAYS;
+    private int _retentionMinutes   = DEFAULT_RETENTION_MINUTES;
+
+    /**
+     *
+     * The default profile: sqlite defaults.
+     *
+     */
+    public PersistenceProfile() { }
+
+    /**
+     *
+     * Read a profile from properties. Invalid values are logged and
+     * ignored.
+     *
+     */
+    public PersistenceProfile(Properties props) {
+
+        _journalMode = getChoice(props, "db.journalMode", JOURNAL_MODES);
+        _synchronous = getChoice(props, "db.synchronous", SYNCHRONOUS_LEVELS);
+
+        String mmapSize = getValue(props, "db.mmapSize");
+        if(mmapSize != null) {
+            try {
+                _mmapSize = Long.valueOf(mmapSize);
+            } catch(NumberFormatException nfe) {
+                SQLiteDatabase.log("Ignoring invalid db.mmapSize " + mmapSize);
+            }
+        }
+
+        String busyTimeout = getValue(props, "db.busyTimeout");
+        if(busyTimeout != null) {
+            try {
+                _busyTimeout = Long.parseLong(busyTimeout);
+            } catch(NumberFormatException nfe) {
+                SQLiteDatabase.log("Ignoring invalid db.busyTimeout " + busyTimeout);
+            }
+        }
+
+        _cacheSize = getInt(props, "db.cacheSize", null);
+
+        _checkpointSeconds = getInt(props, "db.checkpointSeconds",
+                                    _checkpointSeconds).intValue();
+        _replyRetentionDays = getInt(props, "db.replyRetentionDays",
+                                    _replyRetentionDays).intValue();
+        _retentionMinutes = getInt(props, "db.retentionMinutes",
+                                    _retentionMinutes).intValue();
+    }
+
+    /**
+     *
+     * Apply the database wide settings. Called once, outside of any
+     * transaction, before the db is used.
+     *
+     */
+    public void applyDatabase(SQLiteConnection db) throws SQLiteException {
+        if(_journalMode != null) {
+            db.exec("PRAGMA journal_mode = " + _journalMode);
+        }
+    }
+
+    /**
+     *
+     * Apply the per connection settings to a newly opened connection.
+     *
+     */
+    public void applyConnection(SQLiteConnection db) throws SQLiteException {
+        db.setBusyTimeout(_busyTimeout);
+        if(_synchronous != null) {
+            db.exec("PRAGMA synchronous = " + _synchronous);
+        }
+        if(_mmapSize != null) {
+            db.exec("PRAGMA mmap_size = " + _mmapSize);
+        }
+        if(_cacheSize != null) {
+            db.exec("PRAGMA cache_size = " + _cacheSize);
+        }
+    }
+
+    public boolean isWal() {
+        return "WAL".equals(_journalMode);
+    }
+
+    public int getCheckpointSeconds() {
+        return _checkpointSeconds;
+    }
+
+    public int getReplyRetentionDays() {
+        return _replyRetentionDays;
+    }
+
+    public int getRetentionMinutes() {
+        return _retentionMinutes;
+    }
+
+    public String toString() {
+        return  "journal_mode=" + (_journalMode == null ? "default" : _journalMode) +
+                " synchronous=" + (_synchronous == null ? "default" : _synchronous) +
+                " mmap_size=" + (_mmapSize == null ? "default" : "" + _mmapSize) +
+                " cache_size=" + (_cacheSize == null ? "default" : "" + _cacheSize) +
+                " busy_timeout=" + _busyTimeout + "ms" +
+                (isWal() ? " checkpoint=" + _checkpointSeconds + "s" : "") +
+                " reply_retention=" + 
+                    (_replyRetentionDays > 0 ? _replyRetentionDays + "d" : "off");
+    }
+
+    private static String getValue(Properties props, String key) {
+        String value = props.getProperty(key);
+        if(value == null) {
+            return null;
+        }
+        value = value.trim();
+        return value.length() == 0 ? null : value;
+    }
+
+    private static Integer getInt(  Properties props,
+                                    String key,
+                                    Integer defaultValue ) {
+        String value = getValue(props, key);
+        if(value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.valueOf(value);
+        } catch(NumberFormatException nfe) {
+            SQLiteDatabase.log("Ignoring invalid " + key + " " + value);
+            return defaultValue;
+        }
+    }
+
+    private static String getChoice(    Properties props,
+                                        String key,
+                                        List<String> choices ) {
+        String value = getValue(props, key);
+        if(value == null) {
+            return null;
+        }
+        value = value.toUpperCase();
+        if(!choices.contains(value)) {
+            SQLiteDatabase.log("Ignoring invalid " + key + " " + value);
+            return null;
+        }
+        return value;
+    }
+
+}
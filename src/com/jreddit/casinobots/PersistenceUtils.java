@@ -13,13 +13,6 @@ import com.jreddit.botkernel.*;
  */
 public class PersistenceUtils {
 
-    /**
-     *
-     *  Location of the db file. This will be relative to the
-     *  working directory of the botkernel we are running in.
-     */
-    private static final String DB_FILE = "../casinobots/scratch/bots.db";
-
     //
     // NOTE How to check for sqlite tables defined in the schema
     //
@@ -34,83 +27,304 @@ public class PersistenceUtils {
         java.util.logging.Logger.getLogger("com.almworks.sqlite4java").setLevel(java.util.logging.Level.OFF);
     }
 
-    private static Object DB_LOCK = new Object();
+    //
+    // Number of player lock stripes.
+    //
+    private static final int PLAYER_LOCK_STRIPES = 64;
+
+    private static final StripedLock PLAYER_LOCKS = 
+                                    new StripedLock(PLAYER_LOCK_STRIPES);
 
     /**
      *
-     * Expose a DB lock to callers.
+     * Lock a player's account.
      *
-     * Not sure about this sqlite library and transactions, so rather than
-     * deal with that, in a threaded env, callers can lock at the java level.
+     * Bank mutations lock the player they touch, so changes to the same
+     * account are serialized while different players settle
+     * concurrently. Callers which need to read a balance and then act on
+     * it (e.g. granting credits only to broke players) can hold the lock
+     * across both calls. Must be paired with unlockPlayer() in a
+     * finally block, and should never be held across network calls.
+     *
+     * Reads and reply tracking take no lock at all; sqlite itself keeps
+     * those consistent.
      *
      */
-    public static Object getDatabaseLock() { return DB_LOCK; }
+    public static void lockPlayer(String player) {
+        long start = System.nanoTime();
+        PLAYER_LOCKS.lock(player);
+        PersistenceMetrics.addLockWait(System.nanoTime() - start);
+    }
+
+    public static void unlockPlayer(String player) {
+        PLAYER_LOCKS.unlock(player);
+    }
 
+    /**
+     *
+     * Return a one line summary of player lock wait times, for logging.
+     *
+     */
+    public static String getLockStats() {
+        return PLAYER_LOCKS.getStats();
+    }
+
+
+    //
+    // Storage backends, see configure().
+    //
+    private static volatile BankStore BANK_STORE = new SQLiteBankStore();
+    private static volatile ReplyStore REPLY_STORE = new SQLiteReplyStore();
+
+    private static boolean _configured = false;
+
+    //
+    // Default location of the bank ledger, relative to the botkernel
+    // working directory.
+    //
+    private static final String DEFAULT_LEDGER_DIR = 
+                                            "../casinobots/scratch/ledger";
+
+    //
+    // Default number of archived ledger logs to keep.
+    //
+    private static final int DEFAULT_LEDGER_ARCHIVES = 10;
 
     /**
      *
-     * Load a file into a List.
+     * Choose the storage backend from a bot's config properties.
      *
-     * Load the specified file line by line into a list the given
-     * number of lines.
+     *  persistence.backend     "sqlite" (the default), "ledger" or
+     *                          "memory"
+     *  ledger.dir              Directory of the bank ledger
+     *  ledger.archives         Number of compacted ledger logs to keep,
+     *                          0 to keep them all
+     *  persistence.preload     "true" to keep the bank and the bots'
+     *                          replies in memory, sqlite backend only
      *
-     * @param filename  The name of the file
-     * @param list      The list on which to add items
-     * @param numLines  The max number of lines to read from the file.
-     *                  Specify -1 to read all lines
+     * The ledger backend keeps the bank in an append-only
+     * LedgerBankStore and replies in sqlite. A new ledger is seeded
+     * from the sqlite bank table. The memory backend keeps
+     * everything in the JVM and persists nothing; it is meant for
+     * simulations and for benchmarking the bots without disk I/O. Only
+     * the first call has any effect, as all bots in the kernel share the
+     * stores.
+     *
+     * Preloading reads the whole bank table at startup, and each bot's
+     * replies when the bot starts, and then serves reads from memory
+     * while writing changes through to sqlite. See PreloadedBankStore
+     * and PreloadedReplyStore.
      *
      */
-    public static void loadList(    String filename, 
-                                    List<String> list, 
-                                    int numLines) {
-        try {
-            FileInputStream fis = new FileInputStream(filename);
-            InputStreamReader isr = new InputStreamReader(fis);
-            BufferedReader br = new BufferedReader(isr);
-
-            int i = 0;
-            String line = null;
-
-            while((line = br.readLine()) != null) {
-                list.add(line.trim());
-                i++;
-                if(i == numLines) {
-                    break;
+    public static synchronized void configure(Properties props) {
+        if(_configured) {
+            return;
+        }
+        _configured = true;
+
+        String backend = props.getProperty("persistence.backend", "sqlite");
+        backend = backend.trim().toLowerCase();
+
+        if(backend.equals("memory")) {
+            setStores(new MemoryBankStore(), new MemoryReplyStore());
+        } else if(backend.equals("ledger")) {
+            SQLiteDatabase.configure(props);
+            String dir = props.getProperty("ledger.dir", DEFAULT_LEDGER_DIR);
+            String keep = props.getProperty("ledger.archives");
+            int archives = DEFAULT_LEDGER_ARCHIVES;
+            if(keep != null) {
+                try {
+                    archives = Integer.parseInt(keep.trim());
+                } catch(NumberFormatException nfe) {
+                    SQLiteDatabase.log("Ignoring invalid ledger.archives " + keep);
                 }
             }
-            
-            br.close();
-            isr.close();
-            fis.close();
-
-        } catch (IOException e) {
-            e.printStackTrace();
-            BotKernel.getBotKernel().log("Error loading file " + filename);
+            try {
+                setStores(  new LedgerBankStore(new File(dir.trim()), 
+                                                archives),
+                            REPLY_STORE );
+            } catch(IOException ioe) {
+                ioe.printStackTrace();
+                SQLiteDatabase.log(
+                    "SEVERE cannot open bank ledger " + dir + 
+                    ", using sqlite.");
+            }
+        } else {
+            if(!backend.equals("sqlite")) {
+                SQLiteDatabase.log(
+                    "Unknown persistence.backend " + backend + 
+                    ", using sqlite.");
+            }
+            SQLiteDatabase.configure(props);
+
+            String preload = props.getProperty("persistence.preload", "false");
+            if(Boolean.parseBoolean(preload.trim())) {
+                preload();
+            }
         }
+
+        SQLiteDatabase.log("Persistence backend: " + 
+                            BANK_STORE.getClass().getSimpleName() + ", " +
+                            REPLY_STORE.getClass().getSimpleName());
     }
 
     /**
-     *  Save a List to a file.
      *
-     * @param filename  The name of the file
-     * @param list      The list to write to the file
+     * Put the preloading stores in front of the sqlite stores, and
+     * report how long the bank took to load and the heap in use after.
      *
      */
-    public static synchronized void saveList(   String filename, 
-                                                List<String> list ) {
+    private static void preload() {
+
+        long start = System.currentTimeMillis();
+
         try {
+            setStores(  new PreloadedBankStore(BANK_STORE),
+                        new PreloadedReplyStore(REPLY_STORE) );
+        } catch(IllegalStateException ise) {
+            SQLiteDatabase.log(
+                "ERROR preloading bank, reading from sqlite: " + 
+                ise.getMessage());
+            return;
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        SQLiteDatabase.log(
+            "Preload done in " + (System.currentTimeMillis() - start) +
+            "ms, heap in use " + 
+            ((runtime.totalMemory() - runtime.freeMemory()) / (1024 * 1024)) +
+            "MiB.");
+    }
+
+    /**
+     *
+     * Replace the storage backends.
+     *
+     * For tools which run outside the botkernel. Must be called before
+     * anything else in this class is used.
+     *
+     */
+    public static synchronized void setStores(  BankStore bankStore,
+                                                ReplyStore replyStore ) {
+        _configured = true;
+        BANK_STORE = bankStore;
+        REPLY_STORE = replyStore;
+    }
+
+    //
+    // The game and thing of the bank change the calling thread is
+    // applying, set by applyBankChange() for the duration of the store
+    // call only.
+    //
+    private static final ThreadLocal<String[]> BANK_REFERENCE =
+                                            new ThreadLocal<String[]>();
+
+    /**
+     *
+     * For stores which keep an audit trail (the ledger), to record with
+     * each change.
+     *
+     * @return { game, thingName } of the change being applied, or null
+     *         if the caller gave none.
+     */
+    public static String[] getBankReference() {
+        return BANK_REFERENCE.get();
+    }
 
-            FileOutputStream fos = new FileOutputStream(filename);
+    //
+    // Reply filters for each bot, keyed by bot name.
+    //
+    private static final Map<String, ReplyFilter> REPLY_FILTERS =
+                            new java.util.concurrent.ConcurrentHashMap<String, ReplyFilter>();
+
+    /**
+     *
+     * Load the reply filter for a bot from the reply store.
+     *
+     * Called by bots at startup. Otherwise the filter is loaded on the
+     * first isBotReplied() call for the bot.
+     *
+     * @param botName   The name of the bot.
+     *
+     */
+    public static void initReplyFilter(String botName) {
+        getReplyFilter(botName);
+    }
+
+    /**
+     *
+     * Return a one line summary of the bot's reply filter hit and false
+     * positive rates, for logging.
+     *
+     * @param botName   The name of the bot.
+     *
+     */
+    public static String getReplyFilterStats(String botName) {
+        ReplyFilter filter = REPLY_FILTERS.get(botName);
+        if(filter == null) {
+            return "not loaded";
+        }
+        return filter.getStats();
+    }
 
-            for(int i = 0; i < list.size(); i++) {
-                String sub = list.get(i);
-                fos.write((sub + "\n").getBytes());
+    /**
+     *
+     * Return the bot's loaded reply filter, loading or rebuilding it
+     * first if necessary.
+     *
+     * @return The filter, or null if it could not be loaded, in which
+     *         case callers should go to the store.
+     */
+    private static ReplyFilter getReplyFilter(String botName) {
+
+        ReplyFilter filter = REPLY_FILTERS.get(botName);
+        if( filter != null &&
+            filter.isReady() && 
+            !filter.isSaturated() ) {
+            return filter;
+        }
+
+        synchronized(REPLY_FILTERS) {
+
+            filter = REPLY_FILTERS.get(botName);
+            if( filter != null &&
+                filter.isReady() && 
+                !filter.isSaturated() ) {
+                return filter;
+            }
+
+            ReplyStore store = REPLY_STORE;
+
+            int count = store.countReplies(botName);
+            if(count == -1) {
+                return null;
+            }
+
+            //
+            // Publish the filter before reading the replies so that
+            // setBotReplied() calls made meanwhile are added to it as
+            // well. It is not used for lookups until ready.
+            //
+            filter = new ReplyFilter(count);
+            REPLY_FILTERS.put(botName, filter);
+
+            List<String> replies = store.getReplies(botName);
+            if(replies == null) {
+                REPLY_FILTERS.remove(botName);
+                return null;
             }
 
-            fos.close();
+            for(String thingName: replies) {
+                filter.add(thingName);
+            }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+            filter.setReady();
+
+            SQLiteDatabase.log(
+                "Loaded reply filter for " + botName + 
+                " with " + count + " replies.");
+
+            return filter;
         }
     }
 
@@ -124,94 +338,239 @@ public class PersistenceUtils {
      *
      */
     public static boolean isBotReplied(String botName, String thingName) {
-        synchronized(DB_LOCK) {
 
-            //
-            // This might be a bit counter intuitive, but we will default
-            // to true here so that the bot doesn't go spam replying
-            // if the db connection somehow fails.
-            //
-            boolean ret = true;
-            
-            try {
-
-                //
-                // TODO Should this connection be 
-                // cached rather than instantiated each time?
-                //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
+        PersistenceMetrics.Timer timer = 
+                            PersistenceMetrics.start("isBotReplied");
+        try {
 
-                SQLiteStatement st = db.prepare(
-                    "SELECT bot_name, thing_name " +
-                    " FROM bot_replies " +
-                    " WHERE bot_name = ? AND thing_name = ?");
+            ReplyFilter filter = getReplyFilter(botName);
 
-                try {
-                    st.bind(1, botName);
-                    st.bind(2, thingName);
-                    if(st.step()) {
-                        ret = true;
-                    } else {
-                        ret = false;
-                    }
-                } finally {
-                    st.dispose();
+            if(filter != null) {
+                if(!filter.mightContain(thingName)) {
+                    return false;
                 }
-                db.dispose();
+                if(filter.isKnownReplied(thingName)) {
+                    return true;
+                }
+            }
 
-            } catch(SQLiteException se) {
-                se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+            Boolean replied = REPLY_STORE.isReplied(botName, thingName);
+
+            if(replied == null) {
+                //
+                // This might be a bit counter intuitive, but we will default
+                // to true here so that the bot doesn't go spam replying
+                // if the db connection somehow fails.
+                //
+                return true;
             }
 
-            return ret;
+            if(filter != null) {
+                filter.recordDbCheck(thingName, replied.booleanValue());
+            }
+
+            return replied.booleanValue();
+
+        } finally {
+            timer.stop();
         }
     }
-   
+
     /**
      * 
      * Set a thing as having been replied to by the specified bot.
      *
+     * With the sqlite backend the marker is written to the db in the
+     * background, batched with other markers. It is visible to 
+     * isBotReplied() immediately.
+     *
      * @param botName   The name of the bot.
      * @param thingName The name of the Thing.
      *
      */
-    public static void setBotReplied(String botName, String thingName) {
-        synchronized(DB_LOCK) {
+    public static void setBotReplied(   String botName, 
+                                        String thingName ) {
+        markReplied("setBotReplied", botName, thingName, false);
+    }
 
-            try {
-                //
-                // TODO Should this connection be cached rather 
-                // than instantiated each time?
-                //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
+    /**
+     *
+     * Mark a turn of one of the bot's game comments as played.
+     *
+     * Like setBotReplied(), but the marker never expires (see
+     * ReplyRetention). Anyone can reply to a game comment at any time,
+     * however old, and without the marker the turn would be played,
+     * and paid, again.
+     *
+     * @param botName       The name of the bot.
+     * @param gameComment   The name of the bot's game comment.
+     *
+     */
+    public static void setTurnPlayed(   String botName, 
+                                        String gameComment ) {
+        markReplied("setTurnPlayed", botName, gameComment, true);
+    }
 
-                SQLiteStatement st = db.prepare(
-                    "INSERT INTO bot_replies (bot_name, thing_name) " +
-                    " VALUES (?, ?)" );
+    private static void markReplied(    String operation,
+                                        final String botName, 
+                                        final String thingName,
+                                        boolean permanent ) {
 
+        PersistenceMetrics.Timer timer = PersistenceMetrics.start(operation);
+        try {
+
+            REPLY_STORE.setReplied(botName, thingName, permanent);
+
+            SQLiteDatabase.afterCommit(new Runnable() {
+                public void run() {
+                    ReplyFilter filter = REPLY_FILTERS.get(botName);
+                    if(filter != null) {
+                        filter.add(thingName);
+                    }
+                }
+            });
+
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     *
+     * Settle a game turn: pay the player, mark the turn of the game
+     * comment played and the player's reply replied to, all in one
+     * transaction.
+     *
+     * Either everything is applied or nothing is, so a crash can never
+     * leave a payout without its reply markers (which would let the turn
+     * be replayed and paid twice) or the reverse. Bots should settle
+     * before sending the reply: if sending then fails the turn is
+     * already paid and will not be replayed.
+     *
+     * With a backend other than sqlite the changes are applied one
+     * after the other, payout first.
+     *
+     * @param botName       The name of the bot.
+     * @param player        The player to pay.
+     * @param payout        Credits to pay, 0 if none.
+     * @param gameComment   The bot's game comment, for setTurnPlayed(),
+     *                      or null if not playing for credits.
+     * @param reply         The player's reply, for setBotReplied().
+     *                      The payout is recorded as for it.
+     *
+     * @return True if the turn was settled, false if nothing was applied.
+     *
+     */
+    public static boolean settleGame(   String botName, 
+                                        String player, 
+                                        int payout,
+                                        String gameComment,
+                                        String reply ) {
+
+        PersistenceMetrics.Timer timer = 
+                            PersistenceMetrics.start("settleGame");
+        try {
+
+            boolean transaction = isSQLiteBackend();
+
+            try {
+
+                if(transaction) {
+                    SQLiteDatabase.begin();
+                }
+                boolean committed = false;
                 try {
-                    st.bind(1, botName);
-                    st.bind(2, thingName);
-                    st.step();
+
+                    if( payout > 0 && 
+                        creditBankBalance(  player, payout, 
+                                            botName, reply ) == -1 ) {
+                        return false;
+                    }
+
+                    if(gameComment != null) {
+                        setTurnPlayed(botName, gameComment);
+                    }
+                    setBotReplied(botName, reply);
+
+                    if(transaction) {
+                        SQLiteDatabase.commit();
+                    }
+                    committed = true;
+
                 } finally {
-                    st.dispose();
+                    if(transaction && !committed) {
+                        SQLiteDatabase.rollback();
+                    }
                 }
-                db.dispose();
+
+                return true;
 
             } catch(SQLiteException se) {
-                se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+                SQLiteDatabase.handleError(se);
+                return false;
             }
+
+        } finally {
+            timer.stop();
         }
     }
 
+    /**
+     *
+     * Wait for queued AsyncPersistence operations, then write any 
+     * buffered reply markers to the store and wait until they are 
+     * committed.
+     *
+     * Bots should call this from shutdown().
+     *
+     */
+    public static void flush() {
+        AsyncPersistence.flush();
+        REPLY_STORE.flush();
+    }
+
+    /**
+     *
+     * Return true if the sqlite backend is in use, so that callers may
+     * group work into SQLiteDatabase transactions.
+     *
+     */
+    public static boolean isSQLiteBackend() {
+        BankStore store = BANK_STORE;
+        if(store instanceof PreloadedBankStore) {
+            store = ((PreloadedBankStore)store).getStore();
+        }
+        return store instanceof SQLiteBankStore;
+    }
+
+    /**
+     *
+     * Return true if bots.db is in use, for replies if not for the bank
+     * (the ledger backend), so that other state can be kept there too.
+     *
+     */
+    public static boolean isSQLiteInUse() {
+        ReplyStore store = REPLY_STORE;
+        if(store instanceof PreloadedReplyStore) {
+            store = ((PreloadedReplyStore)store).getStore();
+        }
+        return isSQLiteBackend() || store instanceof SQLiteReplyStore;
+    }
+
+    //
+    // Number of balances kept in the shared balance cache.
+    //
+    private static final int BALANCE_CACHE_SIZE = 4096;
+
+    private static final BalanceCache BALANCE_CACHE = 
+                                        new BalanceCache(BALANCE_CACHE_SIZE);
+
     /**
      *
      * Query for a player's bank balance.
      *
+     * Served from the shared balance cache when possible.
+     *
      * @param player    The name of the player
      *
      * @return The player's balance, or -1 if no balance is present.
@@ -219,43 +578,149 @@ public class PersistenceUtils {
      */
     public static int getBankBalance(String player) {
 
-        synchronized(DB_LOCK) {
+        PersistenceMetrics.Timer timer = 
+                            PersistenceMetrics.start("getBankBalance");
+        try {
 
-            int ret = -1;
-            
-            try {
+            int bal = BALANCE_CACHE.get(player);
+            if(bal != -1) {
+                return bal;
+            }
 
-                //
-                // TODO Should this connection be 
-                // cached rather than instantiated each time?
-                //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
+            long stamp = BALANCE_CACHE.getStamp();
+            bal = BANK_STORE.getBalance(player);
+            if(bal != -1) {
+                BALANCE_CACHE.putIfUnchanged(player, bal, stamp);
+            }
+
+            return bal;
 
-                SQLiteStatement st = db.prepare(
-                    "SELECT balance " +
-                    " FROM bank " +
-                    " WHERE player_name = ?");
+        } finally {
+            timer.stop();
+        }
+    }
 
+    /**
+     *
+     * Query for many players' bank balances at once.
+     *
+     * Balances in the balance cache are served from it, and the rest
+     * are read from the store in bulk.
+     *
+     * @param players   The names of the players.
+     *
+     * @return The balances of those players who have an account. Players
+     *         without one, or whose balance could not be read, are not in
+     *         the map.
+     *
+     */
+    public static BalanceMap getBankBalances(Collection<String> players) {
+
+        PersistenceMetrics.Timer timer = 
+                            PersistenceMetrics.start("getBankBalances");
+        try {
+
+            BalanceMap ret = new BalanceMap(players.size());
+            List<String> misses = new ArrayList<String>();
+
+            for(String player: players) {
+                int bal = BALANCE_CACHE.get(player);
+                if(bal != -1) {
+                    ret.put(player, bal);
+                } else {
+                    misses.add(player);
+                }
+            }
+
+            if(misses.size() == 0) {
+                return ret;
+            }
+
+            long stamp = BALANCE_CACHE.getStamp();
+            BalanceMap loaded = BANK_STORE.getBalances(misses);
+            if(loaded == null) {
+                return ret;
+            }
+
+            for(String player: loaded.getPlayers()) {
+                int bal = loaded.get(player);
+                ret.put(player, bal);
+                BALANCE_CACHE.putIfUnchanged(player, bal, stamp);
+            }
+
+            return ret;
+
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /**
+     *
+     * Set many players' bank balances, creating accounts as necessary.
+     *
+     * With the sqlite backend all of them are set in one transaction:
+     * either every balance is set or none is.
+     *
+     * @param balances  The balance to set for each player.
+     *
+     * @return True if the balances were set.
+     *
+     */
+    public static boolean setBankBalances(BalanceMap balances) {
+
+        PersistenceMetrics.Timer timer = 
+                            PersistenceMetrics.start("setBankBalances");
+        try {
+
+            boolean transaction = isSQLiteBackend();
+
+            try {
+
+                if(transaction) {
+                    SQLiteDatabase.begin();
+                }
+                boolean committed = false;
                 try {
-                    st.bind(1, player);
-                    if(st.step()) {
-                        ret = st.columnInt(0);
-                    } 
+
+                    for(String player: balances.getPlayers()) {
+                        if(upsertBankBalance(player, balances.get(player)) == -1) {
+                            return false;
+                        }
+                    }
+
+                    if(transaction) {
+                        SQLiteDatabase.commit();
+                    }
+                    committed = true;
+
                 } finally {
-                    st.dispose();
+                    if(transaction && !committed) {
+                        SQLiteDatabase.rollback();
+                    }
                 }
-                db.dispose();
+
+                return true;
 
             } catch(SQLiteException se) {
-                se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+                SQLiteDatabase.handleError(se);
+                return false;
             }
 
-            return ret;
+        } finally {
+            timer.stop();
         }
     }
 
+    /**
+     *
+     * Return a one line summary of the balance cache stats, for logging.
+     *
+     */
+    public static String getBalanceCacheStats() {
+        return BALANCE_CACHE.getStats();
+    }
+
     /**
      * 
      * Set a player's bank balance
@@ -265,102 +730,366 @@ public class PersistenceUtils {
      *
      */
     public static void setBankBalance(String player, int balance) {
+        upsertBankBalance(player, balance);
+    }
 
-        synchronized(DB_LOCK) {
+    /**
+     *
+     * Set a player's bank balance, recording what it is for.
+     *
+     * @param game      The game, e.g. the bot's name.
+     * @param thingName The comment or message it is for.
+     *
+     */
+    public static void setBankBalance(  String player, 
+                                        int balance,
+                                        String game,
+                                        String thingName ) {
+        upsertBankBalance(player, balance, game, thingName);
+    }
 
-            try {
-                //
-                // TODO Should this connection be cached rather 
-                // than instantiated each time?
-                //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
+    /**
+     *
+     * Set a player's bank balance, creating the account if necessary.
+     *
+     * @param player    The name of the player.
+     * @param balance   The balance to set.
+     *
+     * @return The new balance, or -1 on database error.
+     *
+     */
+    public static int upsertBankBalance(String player, int balance) {
+        return applyBankChange(player, balance, UPSERT, null, null);
+    }
 
-                int existingBal = getBankBalance(player);
+    /**
+     *
+     * Set a player's bank balance, creating the account if necessary,
+     * recording what it is for.
+     *
+     * @param game      The game, e.g. the bot's name.
+     * @param thingName The comment or message it is for.
+     *
+     */
+    public static int upsertBankBalance(    String player, 
+                                            int balance,
+                                            String game,
+                                            String thingName ) {
+        return applyBankChange(player, balance, UPSERT, game, thingName);
+    }
 
-                SQLiteStatement st = null;
-               
-                
+    /**
+     *
+     * Add credits to a player's bank balance, creating the account
+     * if necessary.
+     *
+     * @param player    The name of the player.
+     * @param amount    The number of credits to add.
+     *
+     * @return The new balance, or -1 on database error.
+     *
+     */
+    public static int creditBankBalance(String player, int amount) {
+        return applyBankChange(player, amount, CREDIT, null, null);
+    }
+
+    /**
+     *
+     * Add credits to a player's bank balance, creating the account
+     * if necessary, recording what they are for.
+     *
+     * @param game      The game, e.g. the bot's name.
+     * @param thingName The comment or message they are for.
+     *
+     */
+    public static int creditBankBalance(    String player, 
+                                            int amount,
+                                            String game,
+                                            String thingName ) {
+        return applyBankChange(player, amount, CREDIT, game, thingName);
+    }
+
+    /**
+     *
+     * Take credits from a player's bank balance, only if the player
+     * has at least that many credits.
+     *
+     * @param player    The name of the player.
+     * @param amount    The number of credits to take.
+     *
+     * @return The new balance, or -1 if the player has no account,
+     *         insufficient funds, or on database error. In that case
+     *         the balance is unchanged.
+     *
+     */
+    public static int debitBankBalance(String player, int amount) {
+        return applyBankChange(player, amount, DEBIT, null, null);
+    }
+
+    /**
+     *
+     * Take credits from a player's bank balance, only if the player
+     * has at least that many credits, recording what they are for.
+     *
+     * @param game      The game, e.g. the bot's name.
+     * @param thingName The comment or message they are for.
+     *
+     */
+    public static int debitBankBalance( String player, 
+                                        int amount,
+                                        String game,
+                                        String thingName ) {
+        return applyBankChange(player, amount, DEBIT, game, thingName);
+    }
+
+    //
+    // Kinds of bank change for applyBankChange()
+    //
+    private static final int UPSERT = 0;
+    private static final int CREDIT = 1;
+    private static final int DEBIT  = 2;
+
+    //
+    // Metrics operation names, by kind.
+    //
+    private static final String[] BANK_CHANGE_OPERATIONS = new String[] {
+        "upsertBankBalance", "creditBankBalance", "debitBankBalance" };
+
+    /**
+     *
+     * Apply a bank change through the bank store and write the result
+     * through to the caches.
+     *
+     * When called inside a larger sqlite transaction (e.g. a batch on
+     * the async executor) the caller already holds the db write lock,
+     * so no player lock is taken, and the caches are refreshed from the
+     * store once the outer transaction commits.
+     *
+     * @param game      The game the change is for, or null.
+     * @param thingName The comment or message the change is for, or
+     *                  null.
+     *
+     * @return The new balance, or -1 if nothing was changed.
+     */
+    private static int applyBankChange( final String player, 
+                                        int amount, 
+                                        int kind,
+                                        String game,
+                                        String thingName ) {
+
+        PersistenceMetrics.Timer timer = 
+                            PersistenceMetrics.start(BANK_CHANGE_OPERATIONS[kind]);
+        try {
+
+            int ret = -1;
+
+            boolean nested = SQLiteDatabase.inTransaction();
+            if(!nested) {
+                lockPlayer(player);
+            }
+
+            try {
+
+                BankStore store = BANK_STORE;
+                if(game != null || thingName != null) {
+                    BANK_REFERENCE.set(new String[] { 
+                                    game == null ? "" : game,
+                                    thingName == null ? "" : thingName });
+                }
                 try {
-                
-                    if(existingBal == -1) {
-                        st = db.prepare(
-                            "INSERT INTO bank (player_name, balance) " +
-                            " VALUES (?, ?)" );
-                        st.bind(1, player);
-                        st.bind(2, balance);
+                    if(kind == UPSERT) {
+                        ret = store.upsertBalance(player, amount);
+                    } else if(kind == CREDIT) {
+                        ret = store.creditBalance(player, amount);
                     } else {
-                        st = db.prepare(
-                            "UPDATE bank SET balance = ? " +
-                            " WHERE player_name = ?");
-                        st.bind(1, balance);
-                        st.bind(2, player);
+                        ret = store.debitBalance(player, amount);
                     }
-
-                    st.step();
                 } finally {
-                    st.dispose();
+                    BANK_REFERENCE.remove();
                 }
-                db.dispose();
 
-            } catch(SQLiteException se) {
-                se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+                if(ret != -1) {
+                    if(nested) {
+                        SQLiteDatabase.afterCommit(new Runnable() {
+                            public void run() {
+                                refreshBankBalance(player);
+                            }
+                        });
+                    } else {
+                        //
+                        // Still under the player lock, so the caches see
+                        // this player's changes in commit order.
+                        //
+                        cacheBankBalance(player, ret);
+                    }
+                }
+
+            } finally {
+                if(!nested) {
+                    unlockPlayer(player);
+                }
             }
+
+            return ret;
+
+        } finally {
+            timer.stop();
         }
     }
 
     /**
      *
-     * Query for leading players
+     * Write a committed balance through to the balance cache and 
+     * leaderboard. Callers must hold the player lock.
      *
-     * @param limit     Number of leaders to retrieve
+     */
+    private static void cacheBankBalance(String player, int balance) {
+        BALANCE_CACHE.put(player, balance);
+
+        Leaderboard leaderboard = LEADERBOARD;
+        if(leaderboard != null) {
+            leaderboard.update(player, balance);
+        }
+    }
+
+    /**
      *
-     * @return The specified limit number of leading players.
+     * Re-read a player's committed balance into the caches.
      *
      */
-    public static AccountInfo[] getBankLeaders(int limit) {
+    private static void refreshBankBalance(String player) {
+        lockPlayer(player);
+        try {
+            int bal = BANK_STORE.getBalance(player);
+            if(bal != -1) {
+                cacheBankBalance(player, bal);
+            }
+        } finally {
+            unlockPlayer(player);
+        }
+    }
 
-        ArrayList<AccountInfo> ret = new ArrayList<AccountInfo>();
+    //
+    // In memory ranking of all balances, loaded on first use.
+    //
+    private static volatile Leaderboard LEADERBOARD;
+    private static volatile boolean LEADERBOARD_READY = false;
 
-        synchronized(DB_LOCK) {
+    /**
+     *
+     * Return the leaderboard, loading it from the bank store on first use.
+     *
+     * @return The leaderboard, or null if it could not be loaded.
+     */
+    private static Leaderboard getLeaderboard() {
 
-            try {
+        if(LEADERBOARD_READY) {
+            return LEADERBOARD;
+        }
 
-                //
-                // TODO Should this connection be 
-                // cached rather than instantiated each time?
-                //
-                SQLiteConnection db = new SQLiteConnection(new File(DB_FILE));
-                db.open(true);
-
-                SQLiteStatement st = db.prepare(
-                    "SELECT player_name, balance " +
-                    " FROM bank " +
-                    " ORDER BY balance DESC LIMIT ?");
-                
-                try {
-                    st.bind(1, limit);
-                    while(st.step()) {
-                        String name = st.columnString(0);
-                        int bal = st.columnInt(1);
-                        AccountInfo info = new AccountInfo(name, bal);
-                        ret.add(info);
-                    } 
-                } finally {
-                    st.dispose();
-                }
-                db.dispose();
+        synchronized(Leaderboard.class) {
 
-            } catch(SQLiteException se) {
-                se.printStackTrace();
-                BotKernel.getBotKernel().log("SEVERE error with database.");
+            if(LEADERBOARD_READY) {
+                return LEADERBOARD;
+            }
+
+            //
+            // Publish before reading so bank changes made meanwhile are
+            // applied. Accounts read from the store then only fill in
+            // players not already updated. Reads wait until it is ready.
+            //
+            Leaderboard leaderboard = new Leaderboard();
+            LEADERBOARD = leaderboard;
+
+            List<AccountInfo> accounts = BANK_STORE.getAccounts();
+            if(accounts == null) {
+                LEADERBOARD = null;
+                return null;
+            }
+
+            for(AccountInfo account: accounts) {
+                leaderboard.updateIfAbsent( account.getName(),
+                                            account.getBalance() );
+            }
+
+            LEADERBOARD_READY = true;
+
+            SQLiteDatabase.log(
+                "Loaded leaderboard with " + leaderboard.size() + 
+                " accounts.");
+
+            return leaderboard;
+        }
+    }
+
+    /**
+     *
+     * Query for a player's rank.
+     *
+     * @param player    The name of the player
+     *
+     * @return The player's rank, 1 being the highest balance, or -1 if
+     *         the player has no account.
+     *
+     */
+    public static int getBankRank(String player) {
+
+        PersistenceMetrics.Timer timer = 
+                            PersistenceMetrics.start("getBankRank");
+        try {
+
+            Leaderboard leaderboard = getLeaderboard();
+            if(leaderboard == null) {
+                return -1;
             }
+            return leaderboard.getRank(player);
 
-            return (AccountInfo[])ret.toArray(new AccountInfo[0]);
+        } finally {
+            timer.stop();
         }
     }
 
+    /**
+     *
+     * Return the number of players with an account.
+     *
+     */
+    public static int getBankAccountCount() {
+        Leaderboard leaderboard = getLeaderboard();
+        if(leaderboard == null) {
+            return 0;
+        }
+        return leaderboard.size();
+    }
+
+    /**
+     *
+     * Query for leading players
+     *
+     * @param limit     Number of leaders to retrieve
+     *
+     * @return The specified limit number of leading players.
+     *
+     */
+    public static AccountInfo[] getBankLeaders(int limit) {
 
+        PersistenceMetrics.Timer timer = 
+                            PersistenceMetrics.start("getBankLeaders");
+        try {
+
+            Leaderboard leaderboard = getLeaderboard();
+            if(leaderboard != null) {
+                return leaderboard.getTop(limit);
+            }
+
+            //
+            // Could not load the leaderboard, ask the store.
+            //
+            return BANK_STORE.getLeaders(limit);
+
+        } finally {
+            timer.stop();
+        }
+    }
 
 }
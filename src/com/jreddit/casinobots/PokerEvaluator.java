@@ -0,0 +1,397 @@
+package com.jreddit.casinobots;
+
+import com.simplecards.*;
+
+/**
+ *
+ * Table driven video poker hand evaluator.
+ *
+ * Takes a five card hand as a Cards bitmask and returns its paytable
+ * category and multiplier with two table lookups:
+ *
+ *  - A flush is looked up by the 13 bit set of its ranks.
+ *  - Anything else is looked up by the multiset of its ranks. The
+ *    sorted ranks r0 <= ... <= r4 map one to one onto the distinct
+ *    values r0 < r1+1 < ... < r4+4, which are ranked in the
+ *    combinatorial number system, a minimal perfect hash onto
+ *    0 .. C(17, 5) - 1.
+ *
+ * Pairs are categorized by rank, and wheels (ace to five) apart from
+ * other straights, so that the multipliers can be read from PokerHand
+ * for one example hand of each category. Run main() to check every one
+ * of the 2,598,960 hands against PokerHand and time both:
+ *
+ *  $ ant poker-evaluator
+ *
+ */
+public class PokerEvaluator {
+
+    public static final int HIGH_CARD       = 0;
+
+    //
+    // PAIR + rank, for ranks 0 (deuces) to 12 (aces).
+    //
+    public static final int PAIR            = 1;
+
+    public static final int TWO_PAIR        = 14;
+    public static final int THREE_OF_A_KIND = 15;
+    public static final int STRAIGHT        = 16;
+    public static final int WHEEL           = 17;
+    public static final int FLUSH           = 18;
+    public static final int FULL_HOUSE      = 19;
+    public static final int FOUR_OF_A_KIND  = 20;
+    public static final int STRAIGHT_FLUSH  = 21;
+    public static final int STEEL_WHEEL     = 22;
+    public static final int ROYAL_FLUSH     = 23;
+
+    public static final int CATEGORIES      = 24;
+
+    private static final int RANKS = 13;
+
+    private static final int HAND_SIZE = 5;
+
+    //
+    // 52 choose 5
+    //
+    private static final int HANDS = 2598960;
+
+    private static final int WHEEL_RANKS = 0x100F;     // A 2 3 4 5
+    private static final int ROYAL_RANKS = 0x1F00;     // 10 J Q K A
+
+    //
+    // BINOMIAL[n][k] = n choose k
+    //
+    private static final int[][] BINOMIAL = new int[RANKS + HAND_SIZE][HAND_SIZE + 1];
+
+    //
+    // Category by multiset hash, and of flushes by rank set.
+    //
+    private static final byte[] MULTISET_CATEGORIES;
+    private static final byte[] FLUSH_CATEGORIES = new byte[1 << RANKS];
+
+    private static final int[] MULTIPLIERS = new int[CATEGORIES];
+
+    static {
+
+        for(int n = 0; n < BINOMIAL.length; n++) {
+            BINOMIAL[n][0] = 1;
+            for(int k = 1; k <= HAND_SIZE && k <= n; k++) {
+                BINOMIAL[n][k] = BINOMIAL[n - 1][k - 1] + 
+                                    (k <= n - 1 ? BINOMIAL[n - 1][k] : 0);
+            }
+        }
+
+        MULTISET_CATEGORIES = new byte[BINOMIAL[RANKS + HAND_SIZE - 1][HAND_SIZE]];
+        fillMultisets(new int[HAND_SIZE], 0, 0);
+
+        for(int ranks = 0; ranks < FLUSH_CATEGORIES.length; ranks++) {
+            if(Integer.bitCount(ranks) == HAND_SIZE) {
+                int straight = straightCategory(ranks);
+                if(straight == STRAIGHT) {
+                    FLUSH_CATEGORIES[ranks] = (byte)(ranks == ROYAL_RANKS ? 
+                                                ROYAL_FLUSH : STRAIGHT_FLUSH);
+                } else if(straight == WHEEL) {
+                    FLUSH_CATEGORIES[ranks] = (byte)STEEL_WHEEL;
+                } else {
+                    FLUSH_CATEGORIES[ranks] = (byte)FLUSH;
+                }
+            }
+        }
+
+        //
+        // Read the paytable from PokerHand.
+        //
+        for(int category = 0; category < CATEGORIES; category++) {
+            PokerHand hand = toPokerHand(example(category));
+            MULTIPLIERS[category] = hand.isWinner() ? hand.getWinType() : 0;
+        }
+    }
+
+    /**
+     *
+     * Return the category of a five card hand.
+     *
+     * @param hand  A Cards set of exactly five cards.
+     *
+     */
+    public static int evaluate(long hand) {
+
+        int suits = 0;
+        int ranks = 0;
+        int hash = 0;
+
+        //
+        // Bits come out lowest rank first, so the ranks are sorted.
+        //
+        for(int i = 0; i < HAND_SIZE; i++) {
+            int card = Long.numberOfTrailingZeros(hand);
+            hand &= hand - 1;
+            int rank = card >> 2;
+            suits |= 1 << (card & 3);
+            ranks |= 1 << rank;
+            hash += BINOMIAL[rank + i][i + 1];
+        }
+
+        if(Integer.bitCount(suits) == 1) {
+            return FLUSH_CATEGORIES[ranks];
+        }
+        return MULTISET_CATEGORIES[hash];
+    }
+
+    /**
+     *
+     * Return the payout multiplier of a five card hand, 0 for a losing
+     * hand. As PokerHand.getWinType() for winning hands.
+     *
+     */
+    public static int getMultiplier(long hand) {
+        return MULTIPLIERS[evaluate(hand)];
+    }
+
+    public static int getCategoryMultiplier(int category) {
+        return MULTIPLIERS[category];
+    }
+
+    public static String getCategoryName(int category) {
+        if(category >= PAIR && category < PAIR + RANKS) {
+            return "Pair of " + Cards.toString(Cards.card(category - PAIR, 0))
+                                    .replaceAll(".$", "") + "s";
+        }
+        switch(category) {
+            case HIGH_CARD:         return "High card";
+            case TWO_PAIR:          return "Two pair";
+            case THREE_OF_A_KIND:   return "Three of a kind";
+            case STRAIGHT:          return "Straight";
+            case WHEEL:             return "Straight (wheel)";
+            case FLUSH:             return "Flush";
+            case FULL_HOUSE:        return "Full house";
+            case FOUR_OF_A_KIND:    return "Four of a kind";
+            case STRAIGHT_FLUSH:    return "Straight flush";
+            case STEEL_WHEEL:       return "Straight flush (wheel)";
+            case ROYAL_FLUSH:       return "Royal flush";
+        }
+        return "Unknown";
+    }
+
+    /**
+     *
+     * Enumerate every sorted rank multiset, filling in the category of
+     * those which are possible (at most four of a rank).
+     *
+     */
+    private static void fillMultisets(int[] ranks, int i, int min) {
+
+        if(i == HAND_SIZE) {
+            int hash = 0;
+            int[] counts = new int[RANKS];
+            int set = 0;
+            for(int j = 0; j < HAND_SIZE; j++) {
+                hash += BINOMIAL[ranks[j] + j][j + 1];
+                counts[ranks[j]]++;
+                set |= 1 << ranks[j];
+            }
+            MULTISET_CATEGORIES[hash] = (byte)multisetCategory(counts, set);
+            return;
+        }
+
+        for(int rank = min; rank < RANKS; rank++) {
+            ranks[i] = rank;
+            fillMultisets(ranks, i + 1, rank);
+        }
+    }
+
+    private static int multisetCategory(int[] counts, int set) {
+
+        int pairs = 0;
+        int pairRank = -1;
+        int max = 0;
+        for(int rank = 0; rank < RANKS; rank++) {
+            if(counts[rank] == 2) {
+                pairs++;
+                pairRank = rank;
+            }
+            max = Math.max(max, counts[rank]);
+        }
+
+        if(max >= 4) {
+            return FOUR_OF_A_KIND;
+        }
+        if(max == 3) {
+            return pairs == 1 ? FULL_HOUSE : THREE_OF_A_KIND;
+        }
+        if(pairs == 2) {
+            return TWO_PAIR;
+        }
+        if(pairs == 1) {
+            return PAIR + pairRank;
+        }
+        int straight = straightCategory(set);
+        return straight != -1 ? straight : HIGH_CARD;
+    }
+
+    /**
+     *
+     * @return STRAIGHT or WHEEL if the five ranks are consecutive,
+     *         -1 otherwise.
+     */
+    private static int straightCategory(int ranks) {
+        if(ranks == WHEEL_RANKS) {
+            return WHEEL;
+        }
+        int low = Integer.numberOfTrailingZeros(ranks);
+        return (ranks >> low) == 0x1F ? STRAIGHT : -1;
+    }
+
+    /**
+     *
+     * Return a hand of the category, as a Cards set.
+     *
+     */
+    static long example(int category) {
+
+        //
+        // Ranks and suits of the five cards.
+        //
+        int[] r;
+        int[] s = new int[] { 0, 1, 2, 3, 0 };
+
+        if(category >= PAIR && category < PAIR + RANKS) {
+            int pair = category - PAIR;
+            r = new int[] { pair, pair, 0, 0, 0 };
+            int n = 2;
+            for(int rank = RANKS - 1; n < HAND_SIZE; rank--) {
+                if(rank != pair) {
+                    r[n++] = rank;
+                }
+            }
+        } else {
+            switch(category) {
+                case TWO_PAIR:          r = new int[] { 0, 0, 1, 1, 3 }; break;
+                case THREE_OF_A_KIND:   r = new int[] { 0, 0, 0, 1, 3 }; break;
+                case STRAIGHT:          r = new int[] { 1, 2, 3, 4, 5 }; break;
+                case WHEEL:             r = new int[] { 12, 0, 1, 2, 3 }; break;
+                case FULL_HOUSE:        r = new int[] { 0, 0, 0, 1, 1 }; break;
+                case FOUR_OF_A_KIND:    r = new int[] { 0, 0, 0, 0, 1 }; break;
+                case FLUSH:             r = new int[] { 0, 2, 4, 6, 8 }; break;
+                case STRAIGHT_FLUSH:    r = new int[] { 1, 2, 3, 4, 5 }; break;
+                case STEEL_WHEEL:       r = new int[] { 12, 0, 1, 2, 3 }; break;
+                case ROYAL_FLUSH:       r = new int[] { 8, 9, 10, 11, 12 }; break;
+                default:                r = new int[] { 0, 2, 4, 6, 8 }; break;
+            }
+            if( category == FLUSH || 
+                category == STRAIGHT_FLUSH || 
+                category == STEEL_WHEEL ||
+                category == ROYAL_FLUSH ) {
+                s = new int[] { 0, 0, 0, 0, 0 };
+            }
+        }
+
+        long ret = 0;
+        for(int i = 0; i < HAND_SIZE; i++) {
+            ret |= Cards.mask(Cards.card(r[i], s[i]));
+        }
+        return ret;
+    }
+
+    /**
+     *
+     * Build the simple-cards hand of a Cards set.
+     *
+     */
+    public static PokerHand toPokerHand(long hand) {
+        String[] text = Cards.toStrings(hand);
+        Card[] cards = new PokerCard[text.length];
+        for(int i = 0; i < text.length; i++) {
+            cards[i] = new PokerCard(text[i]);
+        }
+        return new PokerHand(cards);
+    }
+
+    /**
+     *
+     * Check every hand against PokerHand, then time both.
+     *
+     */
+    public static void main(String[] args) {
+
+        System.out.println("Paytable:");
+        for(int category = 0; category < CATEGORIES; category++) {
+            System.out.println(
+                String.format("  %-24s %5d", 
+                                getCategoryName(category), 
+                                MULTIPLIERS[category]));
+        }
+        System.out.println("");
+
+        long[] hands = new long[HANDS];
+        int n = 0;
+        for(int a = 0; a < Cards.DECK_SIZE; a++)
+        for(int b = a + 1; b < Cards.DECK_SIZE; b++)
+        for(int c = b + 1; c < Cards.DECK_SIZE; c++)
+        for(int d = c + 1; d < Cards.DECK_SIZE; d++)
+        for(int e = d + 1; e < Cards.DECK_SIZE; e++) {
+            hands[n++] = Cards.mask(a) | Cards.mask(b) | Cards.mask(c) |
+                            Cards.mask(d) | Cards.mask(e);
+        }
+
+        int[] counts = new int[CATEGORIES];
+        int mismatches = 0;
+
+        long start = System.nanoTime();
+        for(long hand: hands) {
+            PokerHand pokerHand = toPokerHand(hand);
+            int expected = pokerHand.isWinner() ? pokerHand.getWinType() : 0;
+            int category = evaluate(hand);
+            counts[category]++;
+            if(MULTIPLIERS[category] != expected) {
+                if(mismatches < 10) {
+                    System.out.println(
+                        "MISMATCH " + pokerHand + ": " + 
+                        getCategoryName(category) + " pays " + 
+                        MULTIPLIERS[category] + ", PokerHand pays " + 
+                        expected);
+                }
+                mismatches++;
+            }
+        }
+        long pokerHandNanos = System.nanoTime() - start;
+
+        System.out.println("Hands:      " + n);
+        for(int category = 0; category < CATEGORIES; category++) {
+            System.out.println(
+                String.format("  %-24s %8d", 
+                                getCategoryName(category), counts[category]));
+        }
+        System.out.println("Mismatches: " + mismatches);
+        System.out.println("");
+
+        //
+        // Warm up, then time the evaluator alone.
+        //
+        int sink = 0;
+        for(int round = 0; round < 3; round++) {
+            for(long hand: hands) {
+                sink += getMultiplier(hand);
+            }
+        }
+        start = System.nanoTime();
+        int rounds = 10;
+        for(int round = 0; round < rounds; round++) {
+            for(long hand: hands) {
+                sink += getMultiplier(hand);
+            }
+        }
+        long tableNanos = (System.nanoTime() - start) / rounds;
+
+        System.out.println(
+            String.format("PokerHand:  %8.1f ns/hand (with conversion)", 
+                            (double)pokerHandNanos / n));
+        System.out.println(
+            String.format("Evaluator:  %8.1f ns/hand", 
+                            (double)tableNanos / n));
+        System.out.println("(" + sink + ")");
+
+        System.exit(mismatches == 0 ? 0 : 1);
+    }
+
+}
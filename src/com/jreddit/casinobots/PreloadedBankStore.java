@@ -0,0 +1,158 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+
+/**
+ *
+ * BankStore which keeps every balance in memory in front of another
+ * store, normally the SQLiteBankStore.
+ *
+ * The whole bank is read into a BalanceMap when the store is created,
+ * and from then on every read is answered from memory without touching
+ * the db. Changes are written through to the underlying store first and
+ * only applied in memory once they are committed, so memory never holds
+ * a balance the db does not. A change made inside a caller's sqlite
+ * transaction is therefore not seen by reads until the transaction
+ * commits.
+ *
+ * This assumes this process is the only writer to the bank, which is
+ * the case for the botkernel.
+ *
+ */
+public class PreloadedBankStore implements BankStore {
+
+    private final BankStore _store;
+
+    private final BalanceMap _balances;
+
+    /**
+     *
+     * Load every balance from the store.
+     *
+     * @throws IllegalStateException if the accounts could not be read.
+     */
+    public PreloadedBankStore(BankStore store) {
+        _store = store;
+
+        long start = System.currentTimeMillis();
+
+        List<AccountInfo> accounts = store.getAccounts();
+        if(accounts == null) {
+            throw new IllegalStateException("Cannot read bank accounts");
+        }
+
+        _balances = new BalanceMap(accounts.size());
+        for(AccountInfo account: accounts) {
+            _balances.put(account.getName(), account.getBalance());
+        }
+
+        SQLiteDatabase.log(
+            "Preloaded " + _balances.size() + " bank accounts in " +
+            (System.currentTimeMillis() - start) + "ms, about " +
+            (_balances.getFootprint() / 1024) + "KiB.");
+    }
+
+    /**
+     *
+     * Return the store changes are written through to.
+     *
+     */
+    public BankStore getStore() {
+        return _store;
+    }
+
+    public synchronized int getBalance(String player) {
+        return _balances.get(player);
+    }
+
+    public synchronized BalanceMap getBalances(Collection<String> players) {
+        BalanceMap ret = new BalanceMap(players.size());
+        for(String player: players) {
+            int bal = _balances.get(player);
+            if(bal != -1) {
+                ret.put(player, bal);
+            }
+        }
+        return ret;
+    }
+
+    public int upsertBalance(String player, int balance) {
+        return applied(player, _store.upsertBalance(player, balance));
+    }
+
+    public int creditBalance(String player, int amount) {
+        return applied(player, _store.creditBalance(player, amount));
+    }
+
+    public int debitBalance(String player, int amount) {
+        return applied(player, _store.debitBalance(player, amount));
+    }
+
+    public synchronized List<AccountInfo> getAccounts() {
+        List<AccountInfo> ret = new ArrayList<AccountInfo>(_balances.size());
+        for(String player: _balances.getPlayers()) {
+            ret.add(new AccountInfo(player, _balances.get(player)));
+        }
+        return ret;
+    }
+
+    public AccountInfo[] getLeaders(int limit) {
+        Leaderboard leaderboard = new Leaderboard();
+        for(AccountInfo account: getAccounts()) {
+            leaderboard.update(account.getName(), account.getBalance());
+        }
+        return leaderboard.getTop(limit);
+    }
+
+    /**
+     *
+     * Apply a change made to the underlying store in memory, once it
+     * has committed.
+     *
+     * @param balance   The new balance from the store, -1 if the change
+     *                  failed.
+     *
+     * @return balance
+     */
+    private int applied(final String player, int balance) {
+
+        if(balance == -1) {
+            return -1;
+        }
+
+        if(!SQLiteDatabase.inTransaction()) {
+            //
+            // Committed, and the caller holds the player lock, so
+            // changes to this player arrive in commit order.
+            //
+            put(player, balance);
+            return balance;
+        }
+
+        //
+        // The write lock is released before afterCommit tasks run, so
+        // another change to the player may have committed since. Read
+        // back what is committed rather than trust this balance.
+        //
+        SQLiteDatabase.afterCommit(new Runnable() {
+            public void run() {
+                PersistenceUtils.lockPlayer(player);
+                try {
+                    int bal = _store.getBalance(player);
+                    if(bal != -1) {
+                        put(player, bal);
+                    }
+                } finally {
+                    PersistenceUtils.unlockPlayer(player);
+                }
+            }
+        });
+
+        return balance;
+    }
+
+    private synchronized void put(String player, int balance) {
+        _balances.put(player, balance);
+    }
+
+}
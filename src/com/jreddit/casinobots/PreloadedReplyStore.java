@@ -0,0 +1,162 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+
+/**
+ *
+ * ReplyStore which keeps each bot's replies in memory in front of
+ * another store, normally the SQLiteReplyStore.
+ *
+ * A bot's replies are read into a ThingSet the first time the bot is
+ * seen, which is at startup when the bot loads its reply filter. With
+ * reply retention on, the table only holds the recent window, so that
+ * is all that is loaded. From then on isReplied() is answered from
+ * memory, misses included, and replies are written through to the
+ * underlying store and added in memory once committed.
+ *
+ * Names pruned from the table by ReplyRetention stay in memory until
+ * restart, which only costs memory.
+ *
+ */
+public class PreloadedReplyStore implements ReplyStore {
+
+    private final ReplyStore _store;
+
+    //
+    // Loaded replies, and replies being loaded, keyed by bot name. Each
+    // ThingSet is guarded by itself.
+    //
+    private final Map<String, ThingSet> _replies =
+                        new java.util.concurrent.ConcurrentHashMap<String, ThingSet>();
+    private final Map<String, ThingSet> _loading =
+                        new java.util.concurrent.ConcurrentHashMap<String, ThingSet>();
+
+    public PreloadedReplyStore(ReplyStore store) {
+        _store = store;
+    }
+
+    /**
+     *
+     * Return the store changes are written through to.
+     *
+     */
+    public ReplyStore getStore() {
+        return _store;
+    }
+
+    public Boolean isReplied(String botName, String thingName) {
+        ThingSet replies = getSet(botName);
+        if(replies == null) {
+            return _store.isReplied(botName, thingName);
+        }
+        synchronized(replies) {
+            return Boolean.valueOf(replies.contains(thingName));
+        }
+    }
+
+    public void setReplied( final String botName, 
+                            final String thingName,
+                            boolean permanent ) {
+
+        _store.setReplied(botName, thingName, permanent);
+
+        SQLiteDatabase.afterCommit(new Runnable() {
+            public void run() {
+                //
+                // getSet() moves a set from _loading to _replies, so
+                // look in that order to never miss it.
+                //
+                ThingSet replies = _loading.get(botName);
+                if(replies == null) {
+                    replies = _replies.get(botName);
+                }
+                if(replies != null) {
+                    synchronized(replies) {
+                        replies.add(thingName);
+                    }
+                }
+            }
+        });
+    }
+
+    public int countReplies(String botName) {
+        ThingSet replies = getSet(botName);
+        if(replies == null) {
+            return _store.countReplies(botName);
+        }
+        synchronized(replies) {
+            return replies.size();
+        }
+    }
+
+    public List<String> getReplies(String botName) {
+        ThingSet replies = getSet(botName);
+        if(replies == null) {
+            return _store.getReplies(botName);
+        }
+        synchronized(replies) {
+            return replies.getNames();
+        }
+    }
+
+    public void flush() {
+        _store.flush();
+    }
+
+    /**
+     *
+     * Return the bot's loaded replies, loading them first if necessary.
+     *
+     * @return The replies, or null if they could not be loaded, in which
+     *         case callers should go to the underlying store.
+     */
+    private ThingSet getSet(String botName) {
+
+        ThingSet replies = _replies.get(botName);
+        if(replies != null) {
+            return replies;
+        }
+
+        synchronized(_replies) {
+
+            replies = _replies.get(botName);
+            if(replies != null) {
+                return replies;
+            }
+
+            long start = System.currentTimeMillis();
+
+            //
+            // Make the set visible to setReplied() before reading, so
+            // that replies committed meanwhile are not lost, but only
+            // answer from it once it is complete. The underlying store
+            // lists its pending replies first.
+            //
+            ThingSet loading = new ThingSet();
+            _loading.put(botName, loading);
+
+            List<String> names = _store.getReplies(botName);
+            if(names == null) {
+                _loading.remove(botName);
+                return null;
+            }
+
+            synchronized(loading) {
+                for(String thingName: names) {
+                    loading.add(thingName);
+                }
+            }
+
+            _replies.put(botName, loading);
+            _loading.remove(botName);
+
+            SQLiteDatabase.log(
+                "Preloaded " + loading.size() + " replies for " + botName + 
+                " in " + (System.currentTimeMillis() - start) + "ms, about " +
+                (loading.getFootprint() / 1024) + "KiB.");
+
+            return loading;
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ *
+ * In memory filter in front of the bot_replies table for one bot.
+ *
+ * A Bloom filter of every thing name the bot has replied to answers
+ * "definitely not replied" without touching the db, which is the answer
+ * for nearly every crawled thing. Names the filter can't rule out are
+ * checked against a small LRU of names known to be replied, and only
+ * then against the db.
+ *
+ */
+public class ReplyFilter {
+
+    //
+    // Target false positive probability of the Bloom filter at capacity.
+    //
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    //
+    // Smallest number of names we size the filter for.
+    //
+    private static final int MIN_CAPACITY = 65536;
+
+    //
+    // Number of recently confirmed replied names to keep.
+    //
+    private static final int RECENT_CACHE_SIZE = 4096;
+
+    private final AtomicLongArray _bits;
+    private final long _numBits;
+    private final int _numHashes;
+    private final int _capacity;
+
+    private final AtomicInteger _count = new AtomicInteger();
+
+    private volatile boolean _ready = false;
+
+    private final Map<String, Boolean> _recent =
+        new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(
+                                    Map.Entry<String, Boolean> eldest) {
+                return size() > RECENT_CACHE_SIZE;
+            }
+        };
+
+    //
+    // Stats
+    //
+    private final AtomicLong _lookups           = new AtomicLong();
+    private final AtomicLong _filterNegatives   = new AtomicLong();
+    private final AtomicLong _cacheHits         = new AtomicLong();
+    private final AtomicLong _dbChecks          = new AtomicLong();
+    private final AtomicLong _falsePositives    = new AtomicLong();
+
+    /**
+     * @param expected  The number of names already replied to. The
+     *                  filter is sized with room to grow past this.
+     */
+    public ReplyFilter(int expected) {
+        _capacity = Math.max(MIN_CAPACITY, expected * 2);
+
+        double ln2 = Math.log(2);
+        long bits = (long)Math.ceil(
+                        -_capacity * Math.log(FALSE_POSITIVE_RATE) /
+                        (ln2 * ln2) );
+        // Round up to whole longs.
+        _bits = new AtomicLongArray((int)((bits + 63) / 64));
+        _numBits = _bits.length() * 64L;
+        _numHashes = Math.max(1,
+                        (int)Math.round(((double)_numBits / _capacity) * ln2));
+    }
+
+    /**
+     *
+     * Record that the thing has been replied to.
+     *
+     */
+    public void add(String thingName) {
+        long h1 = hash1(thingName);
+        long h2 = hash2(thingName);
+        for(int i = 0; i < _numHashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % _numBits;
+            int idx = (int)(bit >>> 6);
+            long mask = 1L << (bit & 63);
+            long old = _bits.get(idx);
+            while((old & mask) == 0 &&
+                  !_bits.compareAndSet(idx, old, old | mask)) {
+                old = _bits.get(idx);
+            }
+        }
+        _count.incrementAndGet();
+
+        synchronized(_recent) {
+            _recent.put(thingName, Boolean.TRUE);
+        }
+    }
+
+    /**
+     *
+     * Check the filter.
+     *
+     * @return false if the thing has definitely not been replied to.
+     *         true if it is known to be replied to, or might be, in
+     *         which case the caller should check the db and report
+     *         the answer with recordDbCheck().
+     *
+     * Use isKnownReplied() to tell the two apart.
+     */
+    public boolean mightContain(String thingName) {
+        _lookups.incrementAndGet();
+
+        long h1 = hash1(thingName);
+        long h2 = hash2(thingName);
+        for(int i = 0; i < _numHashes; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % _numBits;
+            if((_bits.get((int)(bit >>> 6)) & (1L << (bit & 63))) == 0) {
+                _filterNegatives.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * Return true if the thing is in the recently replied cache.
+     * Only meaningful after mightContain() returned true.
+     *
+     */
+    public boolean isKnownReplied(String thingName) {
+        synchronized(_recent) {
+            if(_recent.get(thingName) != null) {
+                _cacheHits.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *
+     * Record the result of a db check for a possible positive.
+     *
+     */
+    public void recordDbCheck(String thingName, boolean replied) {
+        _dbChecks.incrementAndGet();
+        if(replied) {
+            synchronized(_recent) {
+                _recent.put(thingName, Boolean.TRUE);
+            }
+        } else {
+            _falsePositives.incrementAndGet();
+        }
+    }
+
+    /**
+     *
+     * Mark the filter as fully loaded and usable for lookups.
+     *
+     */
+    public void setReady() {
+        _ready = true;
+    }
+
+    public boolean isReady() {
+        return _ready;
+    }
+
+    /**
+     *
+     * Return true once more names have been added than the filter was
+     * sized for, at which point it should be rebuilt larger.
+     *
+     */
+    public boolean isSaturated() {
+        return _count.get() > _capacity;
+    }
+
+    /**
+     *
+     * One line summary of the filter stats, for logging.
+     *
+     */
+    public String getStats() {
+        long lookups    = _lookups.get();
+        long negatives  = _filterNegatives.get();
+        long hits       = _cacheHits.get();
+        long checks     = _dbChecks.get();
+        long falsePos   = _falsePositives.get();
+
+        return  "lookups " + lookups +
+                ", answered in memory " + percent(negatives + hits, lookups) +
+                " (filter " + percent(negatives, lookups) +
+                ", cache " + percent(hits, lookups) + ")" +
+                ", db checks " + checks +
+                ", false positives " + percent(falsePos, lookups) +
+                ", names " + _count.get() + "/" + _capacity;
+    }
+
+    private static String percent(long n, long total) {
+        if(total == 0) {
+            return "0%";
+        }
+        return String.format("%.1f%%", (100.0 * n) / total);
+    }
+
+    //
+    // Two independent hashes for double hashing.
+    //
+    private static long hash1(String s) {
+        long h = s.hashCode();
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    private static long hash2(String s) {
+        // FNV-1a
+        long h = 0xcbf29ce484222325L;
+        for(int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h | 1;
+    }
+
+}
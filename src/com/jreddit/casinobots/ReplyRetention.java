@@ -0,0 +1,238 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+
+import com.almworks.sqlite4java.*;
+
+/**
+ *
+ * Expires old rows from bot_replies.
+ *
+ * Most markers are for the thing a bot replied to: a game request found
+ * by the crawler, or a message in its inbox. _replyAfterDate (see
+ * AbstractCasinoBot.commonCrawlerEventChecks()) keeps a bot from
+ * replying to those once they are older than the bot could have been
+ * down for, so after that the marker is dead weight in the table and
+ * its index. prune() deletes those rows a batch at a time, so the bots'
+ * writes interleave with it, and then hands the freed pages back to the
+ * filesystem with an incremental vacuum.
+ *
+ * Turn markers (PersistenceUtils.setTurnPlayed()) are permanent and
+ * never pruned. They are keyed by our game comment, and a player can
+ * reply to a game comment of any age: _replyAfterDate only checks the
+ * reply. Without its marker an old turn would be played, and paid, a
+ * second time.
+ *
+ * Game sessions (see GameSessionStore) are kept for the same number of
+ * days. Losing one only means the comment is fetched and parsed again;
+ * the turn marker still stops a played turn from being replayed.
+ *
+ * Run periodically on the SQLiteDatabase maintenance thread. The reply
+ * filters may still hold pruned names; that only costs a db check.
+ *
+ */
+public class ReplyRetention {
+
+    //
+    // Rows deleted per transaction.
+    //
+    private static final int BATCH_SIZE = 1000;
+
+    private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+    //
+    // auto_vacuum value for INCREMENTAL.
+    //
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    //
+    // Whether the db is in incremental auto vacuum mode, null until
+    // checked.
+    //
+    private static Boolean _incrementalVacuum = null;
+
+    /**
+     *
+     * Delete reply markers older than the given number of days.
+     *
+     * @return The number of rows deleted.
+     *
+     */
+    public static int prune(int days) {
+
+        long cutoff = (System.currentTimeMillis() / 1000) -
+                            (days * SECONDS_PER_DAY);
+        int total = 0;
+
+        try {
+
+            int deleted;
+            do {
+                deleted = pruneBatch(cutoff);
+                total += deleted;
+            } while(deleted == BATCH_SIZE);
+
+            int sessions = pruneSessions(cutoff);
+            if(sessions > 0) {
+                SQLiteDatabase.log(
+                    "Pruned " + sessions + " game sessions older than " +
+                    days + " days.");
+            }
+
+            if(total + sessions > 0 && isIncrementalVacuum()) {
+                SQLiteDatabase.getConnection().exec("PRAGMA incremental_vacuum");
+            }
+            if(total > 0) {
+                SQLiteDatabase.log(
+                    "Pruned " + total + " reply markers older than " +
+                    days + " days.");
+            }
+
+        } catch(SQLiteException se) {
+            SQLiteDatabase.handleError(se);
+        } catch(RuntimeException re) {
+            //
+            // Do not let it escape, the scheduler would stop running us.
+            //
+            re.printStackTrace();
+            SQLiteDatabase.log("ERROR pruning reply markers.");
+        }
+
+        return total;
+    }
+
+    /**
+     *
+     * Delete up to BATCH_SIZE expired rows in one transaction.
+     *
+     */
+    private static int pruneBatch(long cutoff) throws SQLiteException {
+
+        SQLiteDatabase.begin();
+        boolean committed = false;
+        try {
+
+            //
+            // bot_replies may have no rowid, so find the keys first and
+            // delete by primary key.
+            //
+            List<Object[]> expired = new ArrayList<Object[]>();
+            SQLiteStatement st = SQLiteDatabase.prepare(
+                "SELECT bot_id, thing_name " +
+                " FROM bot_replies " +
+                " WHERE replied_at < ? AND permanent = 0 " +
+                " LIMIT ?" );
+            try {
+                st.bind(1, cutoff);
+                st.bind(2, BATCH_SIZE);
+                while(st.step()) {
+                    expired.add(new Object[] {
+                        Integer.valueOf(st.columnInt(0)), 
+                        st.columnString(1) });
+                }
+            } finally {
+                st.dispose();
+            }
+
+            st = SQLiteDatabase.prepare(
+                "DELETE FROM bot_replies " +
+                " WHERE bot_id = ? AND thing_name = ?" );
+            try {
+                for(Object[] reply: expired) {
+                    st.bind(1, ((Integer)reply[0]).intValue());
+                    st.bind(2, (String)reply[1]);
+                    st.step();
+                    st.reset();
+                }
+            } finally {
+                st.dispose();
+            }
+
+            SQLiteDatabase.commit();
+            committed = true;
+
+            return expired.size();
+
+        } finally {
+            if(!committed) {
+                SQLiteDatabase.rollback();
+            }
+        }
+    }
+
+    /**
+     *
+     * Delete game sessions created before the cutoff. There are far
+     * fewer of them than reply markers, so this is one transaction.
+     *
+     */
+    private static int pruneSessions(long cutoff) throws SQLiteException {
+
+        SQLiteDatabase.begin();
+        boolean committed = false;
+        try {
+
+            int deleted;
+            SQLiteStatement st = SQLiteDatabase.prepare(
+                "DELETE FROM game_sessions " +
+                " WHERE created_at < ?" );
+            try {
+                st.bind(1, cutoff);
+                st.step();
+                deleted = SQLiteDatabase.getConnection().getChanges();
+            } finally {
+                st.dispose();
+            }
+
+            SQLiteDatabase.commit();
+            committed = true;
+
+            return deleted;
+
+        } finally {
+            if(!committed) {
+                SQLiteDatabase.rollback();
+            }
+        }
+    }
+
+    /**
+     *
+     * Return whether the db is in incremental auto vacuum mode, checked
+     * once.
+     *
+     * Without it pages freed by deletes are only reused, never returned,
+     * so the file never shrinks. Changing the mode of an existing db
+     * takes a full VACUUM, which holds the db's write lock for as long
+     * as it takes, so it is not done here: run "ant db-vacuum" with the
+     * bots stopped.
+     *
+     */
+    private static synchronized boolean isIncrementalVacuum()
+                                                throws SQLiteException {
+        if(_incrementalVacuum != null) {
+            return _incrementalVacuum.booleanValue();
+        }
+
+        int mode = 0;
+        SQLiteStatement st = SQLiteDatabase.prepare("PRAGMA auto_vacuum");
+        try {
+            if(st.step()) {
+                mode = st.columnInt(0);
+            }
+        } finally {
+            st.dispose();
+        }
+
+        _incrementalVacuum = Boolean.valueOf(mode == AUTO_VACUUM_INCREMENTAL);
+        if(!_incrementalVacuum.booleanValue()) {
+            SQLiteDatabase.log(
+                "Incremental vacuum is off, pruned pages are reused but " +
+                "the db file will not shrink. Run \"ant db-vacuum\" with " +
+                "the bots stopped to turn it on.");
+        }
+
+        return _incrementalVacuum.booleanValue();
+    }
+
+}
@@ -0,0 +1,60 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+
+/**
+ *
+ * Storage backend for the record of which things each bot has replied
+ * to.
+ *
+ * PersistenceUtils keeps a ReplyFilter per bot in front of the store.
+ * Implementations deal with their own errors: methods report failure
+ * through their return value and never throw.
+ *
+ */
+public interface ReplyStore {
+
+    /**
+     *
+     * @return Whether the bot has replied to the thing, or null on error.
+     */
+    public Boolean isReplied(String botName, String thingName);
+
+    /**
+     *
+     * Record a reply. It must be visible to isReplied() and getReplies()
+     * immediately, even if it is written out later. Stores with
+     * transactions write it as part of the caller's transaction, if
+     * there is one.
+     *
+     * @param permanent True if the marker must never expire, see
+     *                  ReplyRetention. Stores which never expire
+     *                  markers may ignore it.
+     *
+     */
+    public void setReplied( String botName, 
+                            String thingName, 
+                            boolean permanent );
+
+    /**
+     *
+     * @return The number of things the bot has replied to, or -1 on
+     *         error. Only used to size the reply filter.
+     */
+    public int countReplies(String botName);
+
+    /**
+     *
+     * @return The names of every thing the bot has replied to, or null
+     *         on error.
+     */
+    public List<String> getReplies(String botName);
+
+    /**
+     *
+     * Make sure every reply recorded so far is stored durably.
+     *
+     */
+    public void flush();
+
+}
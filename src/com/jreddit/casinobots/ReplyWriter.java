@@ -0,0 +1,215 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.almworks.sqlite4java.*;
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * Write-behind writer for bot_replies.
+ *
+ * Reply markers are buffered in memory and inserted by a background
+ * thread in one transaction, either once BATCH_SIZE markers are waiting
+ * or every FLUSH_INTERVAL_MS, so a busy crawl pays one disk sync per
+ * batch rather than one per marker. Markers stay visible through
+ * isPending() until they have been committed.
+ *
+ */
+public class ReplyWriter implements Runnable {
+
+    //
+    // Flush once this many markers are waiting...
+    //
+    private static final int BATCH_SIZE = 64;
+
+    //
+    // ...or at least this often.
+    //
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    //
+    // Markers not yet committed, as "botName/thingName" keys.
+    //
+    private final Set<String> _pending =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    //
+    // Markers waiting to be written.
+    //
+    private final List<Marker> _queue = new ArrayList<Marker>();
+
+    //
+    // Only one flush at a time, so a marker is never written twice.
+    //
+    private final Object _flushLock = new Object();
+
+    private Thread _thread;
+
+    /**
+     *
+     * Buffer a reply marker.
+     *
+     */
+    public void mark(String botName, String thingName, boolean permanent) {
+
+        _pending.add(key(botName, thingName));
+
+        synchronized(_queue) {
+            _queue.add(new Marker(botName, thingName, permanent));
+
+            if(_thread == null) {
+                _thread = new Thread(this, "ReplyWriter");
+                _thread.setDaemon(true);
+                _thread.start();
+            }
+
+            if(_queue.size() >= BATCH_SIZE) {
+                _queue.notifyAll();
+            }
+        }
+    }
+
+    /**
+     *
+     * Return true if the marker has been buffered but not yet committed.
+     *
+     */
+    public boolean isPending(String botName, String thingName) {
+        return _pending.contains(key(botName, thingName));
+    }
+
+    /**
+     *
+     * Return the thing names of a bot's uncommitted markers.
+     *
+     */
+    public List<String> getPending(String botName) {
+        List<String> ret = new ArrayList<String>();
+        String prefix = botName + "/";
+        for(String key: _pending) {
+            if(key.startsWith(prefix)) {
+                ret.add(key.substring(prefix.length()));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     *
+     * Write all buffered markers in one transaction, on the calling
+     * thread. Returns once they are committed, or have failed and been
+     * put back for the next flush.
+     *
+     */
+    public void flush() {
+
+        synchronized(_flushLock) {
+
+            List<Marker> batch = null;
+            synchronized(_queue) {
+                if(_queue.size() == 0) {
+                    return;
+                }
+                batch = new ArrayList<Marker>(_queue);
+                _queue.clear();
+            }
+
+            try {
+
+                SQLiteDatabase.begin();
+                boolean committed = false;
+                try {
+
+                    SQLiteStatement st = SQLiteDatabase.prepare(
+                        "INSERT OR IGNORE INTO bot_replies " +
+                        " (bot_id, thing_name, replied_at, permanent) " +
+                        " VALUES (?, ?, CAST(strftime('%s', 'now') AS INTEGER), ?)" );
+                    try {
+                        for(Marker reply: batch) {
+                            st.bind(1, NameDictionary.intern(reply.botName));
+                            st.bind(2, reply.thingName);
+                            st.bind(3, reply.permanent ? 1 : 0);
+                            st.step();
+                            st.reset();
+                        }
+                    } finally {
+                        st.dispose();
+                    }
+
+                    SQLiteDatabase.commit();
+                    committed = true;
+
+                } finally {
+                    if(!committed) {
+                        SQLiteDatabase.rollback();
+                    }
+                }
+
+                for(Marker reply: batch) {
+                    _pending.remove(key(reply.botName, reply.thingName));
+                }
+
+            } catch(SQLiteException se) {
+
+                SQLiteDatabase.handleError(se);
+
+                //
+                // Put the batch back in front of anything queued since,
+                // to retry on the next flush.
+                //
+                synchronized(_queue) {
+                    _queue.addAll(0, batch);
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * Background flush loop.
+     *
+     */
+    public void run() {
+        while(true) {
+            try {
+                synchronized(_queue) {
+                    if(_queue.size() < BATCH_SIZE) {
+                        _queue.wait(FLUSH_INTERVAL_MS);
+                    }
+                }
+                flush();
+            } catch(InterruptedException ie) {
+                flush();
+                return;
+            } catch(RuntimeException re) {
+                re.printStackTrace();
+                SQLiteDatabase.log("ERROR in reply writer.");
+            }
+        }
+    }
+
+    private static String key(String botName, String thingName) {
+        return botName + "/" + thingName;
+    }
+
+    /**
+     *
+     * A marker waiting to be written.
+     *
+     */
+    private static class Marker {
+
+        final String botName;
+        final String thingName;
+        final boolean permanent;
+
+        Marker(String botName, String thingName, boolean permanent) {
+            this.botName = botName;
+            this.thingName = thingName;
+            this.permanent = permanent;
+        }
+    }
+
+}
@@ -0,0 +1,275 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+
+import com.almworks.sqlite4java.*;
+
+/**
+ *
+ * BankStore on the bank table of bots.db.
+ *
+ * Accounts are keyed by the player's id in the NameDictionary.
+ *
+ */
+public class SQLiteBankStore implements BankStore {
+
+    //
+    // Kinds of bank change for applyChange()
+    //
+    private static final int UPSERT = 0;
+    private static final int CREDIT = 1;
+    private static final int DEBIT  = 2;
+
+    //
+    // Players per query in getBalances(), under sqlite's default limit
+    // of 999 bound parameters.
+    //
+    private static final int IN_CHUNK = 500;
+
+    public int getBalance(String player) {
+
+        int ret = -1;
+        
+        try {
+
+            int playerId = NameDictionary.getId(player);
+            if(playerId == -1) {
+                return -1;
+            }
+
+            SQLiteStatement st = SQLiteDatabase.prepareRead(
+                "SELECT balance " +
+                " FROM bank " +
+                " WHERE player_id = ?");
+
+            try {
+                st.bind(1, playerId);
+                if(st.step()) {
+                    ret = st.columnInt(0);
+                } 
+            } finally {
+                st.dispose();
+            }
+
+        } catch(SQLiteException se) {
+            SQLiteDatabase.handleError(se);
+        }
+
+        return ret;
+    }
+
+    /**
+     *
+     * Looks the players up IN_CHUNK at a time, one query per chunk.
+     *
+     */
+    public BalanceMap getBalances(Collection<String> players) {
+
+        BalanceMap ret = new BalanceMap(players.size());
+
+        List<String> list = new ArrayList<String>(players);
+
+        try {
+
+            for(int from = 0; from < list.size(); from += IN_CHUNK) {
+
+                List<String> chunk = 
+                    list.subList(from, Math.min(from + IN_CHUNK, list.size()));
+
+                StringBuilder sql = new StringBuilder(
+                    "SELECT n.name, b.balance " +
+                    " FROM names n JOIN bank b ON b.player_id = n.name_id " +
+                    " WHERE n.name IN (?");
+                for(int i = 1; i < chunk.size(); i++) {
+                    sql.append(", ?");
+                }
+                sql.append(")");
+
+                SQLiteStatement st = 
+                            SQLiteDatabase.prepareRead(sql.toString());
+                try {
+                    for(int i = 0; i < chunk.size(); i++) {
+                        st.bind(i + 1, chunk.get(i));
+                    }
+                    while(st.step()) {
+                        ret.put(st.columnString(0), st.columnInt(1));
+                    }
+                } finally {
+                    st.dispose();
+                }
+            }
+
+        } catch(SQLiteException se) {
+            SQLiteDatabase.handleError(se);
+            return null;
+        }
+
+        return ret;
+    }
+
+    public int upsertBalance(String player, int balance) {
+        return applyChange(player, balance, UPSERT);
+    }
+
+    public int creditBalance(String player, int amount) {
+        return applyChange(player, amount, CREDIT);
+    }
+
+    public int debitBalance(String player, int amount) {
+        return applyChange(player, amount, DEBIT);
+    }
+
+    /**
+     *
+     * Apply a bank change in a single transaction.
+     *
+     * The change itself is one UPDATE evaluated by sqlite against the
+     * current row (balance = balance + ?, or guarded with balance >= ?
+     * for debits), so there is no read-modify-write in java. Only when
+     * the UPDATE matched no row do we INSERT the account. The bundled
+     * sqlite predates UPSERT and RETURNING, so the new balance is read
+     * back inside the same transaction.
+     *
+     * Inside a larger transaction this becomes part of it, and the
+     * change only takes effect if that commits.
+     *
+     * @return The new balance, or -1 if nothing was changed.
+     */
+    private int applyChange(String player, int amount, int kind) {
+
+        int ret = -1;
+
+        try {
+
+            SQLiteDatabase.begin();
+            boolean committed = false;
+            try {
+
+                //
+                // A debit needs an existing account, so it never needs
+                // to assign an id.
+                //
+                int playerId = (kind == DEBIT) ?
+                                NameDictionary.getId(player) :
+                                NameDictionary.intern(player);
+
+                SQLiteStatement st = null;
+                if(kind == UPSERT) {
+                    st = SQLiteDatabase.prepare(
+                        "UPDATE bank SET balance = ? " +
+                        " WHERE player_id = ?");
+                } else if(kind == CREDIT) {
+                    st = SQLiteDatabase.prepare(
+                        "UPDATE bank SET balance = balance + ? " +
+                        " WHERE player_id = ?");
+                } else {
+                    st = SQLiteDatabase.prepare(
+                        "UPDATE bank SET balance = balance - ? " +
+                        " WHERE player_id = ? AND balance >= ?");
+                }
+
+                int changes = 0;
+                try {
+                    st.bind(1, amount);
+                    st.bind(2, playerId);
+                    if(kind == DEBIT) {
+                        st.bind(3, amount);
+                    }
+                    st.step();
+                    changes = SQLiteDatabase.getConnection().getChanges();
+                } finally {
+                    st.dispose();
+                }
+
+                if(changes == 0 && kind != DEBIT) {
+                    st = SQLiteDatabase.prepare(
+                        "INSERT INTO bank (player_id, balance) " +
+                        " VALUES (?, ?)" );
+                    try {
+                        st.bind(1, playerId);
+                        st.bind(2, amount);
+                        st.step();
+                    } finally {
+                        st.dispose();
+                    }
+                    changes = 1;
+                }
+
+                if(changes > 0) {
+                    ret = getBalance(player);
+                }
+
+                SQLiteDatabase.commit();
+                committed = true;
+
+            } finally {
+                if(!committed) {
+                    SQLiteDatabase.rollback();
+                }
+            }
+
+        } catch(SQLiteException se) {
+            SQLiteDatabase.handleError(se);
+            ret = -1;
+        }
+
+        return ret;
+    }
+
+    public List<AccountInfo> getAccounts() {
+
+        List<AccountInfo> ret = new ArrayList<AccountInfo>();
+
+        try {
+
+            SQLiteStatement st = SQLiteDatabase.prepareRead(
+                "SELECT n.name, b.balance " +
+                " FROM bank b JOIN names n ON n.name_id = b.player_id");
+            try {
+                while(st.step()) {
+                    ret.add(new AccountInfo(st.columnString(0), 
+                                            st.columnInt(1)));
+                }
+            } finally {
+                st.dispose();
+            }
+
+        } catch(SQLiteException se) {
+            SQLiteDatabase.handleError(se);
+            return null;
+        }
+
+        return ret;
+    }
+
+    public AccountInfo[] getLeaders(int limit) {
+
+        ArrayList<AccountInfo> ret = new ArrayList<AccountInfo>();
+
+        try {
+
+            SQLiteStatement st = SQLiteDatabase.prepareRead(
+                "SELECT n.name, b.balance " +
+                " FROM bank b JOIN names n ON n.name_id = b.player_id " +
+                " ORDER BY b.balance DESC LIMIT ?");
+            
+            try {
+                st.bind(1, limit);
+                while(st.step()) {
+                    String name = st.columnString(0);
+                    int bal = st.columnInt(1);
+                    AccountInfo info = new AccountInfo(name, bal);
+                    ret.add(info);
+                } 
+            } finally {
+                st.dispose();
+            }
+
+        } catch(SQLiteException se) {
+            SQLiteDatabase.handleError(se);
+        }
+
+        return (AccountInfo[])ret.toArray(new AccountInfo[0]);
+    }
+
+}
@@ -0,0 +1,582 @@
+package com.jreddit.casinobots;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.almworks.sqlite4java.*;
+import com.jreddit.botkernel.*;
+
+/**
+ *
+ * Long lived SQLite connections.
+ *
+ * sqlite4java connections are confined to the thread which opened them,
+ * so rather than open and dispose a connection on every query we keep
+ * one open connection per thread. Statements prepared on a connection
+ * are cached by sqlite4java, so once a thread has run a query the
+ * compiled statement is reused on the next call.
+ *
+ * Each thread has two connections: a read-only one for reads made
+ * outside of a transaction (prepareRead()), and a read-write one for
+ * transactions. Write transactions are serialized by WRITE_LOCK, so only
+ * one write connection is ever active and writers queue in java rather
+ * than polling sqlite's busy handler. Reads take no java lock at all;
+ * in WAL mode they also never wait on the writer, so read throughput
+ * grows with the number of threads. Anything else still waiting on the
+ * db lock (e.g. another process) waits up to the profile's busy timeout.
+ *
+ * The journal mode, sync level and cache sizes come from the
+ * PersistenceProfile passed to configure(). A background maintenance
+ * thread checkpoints the log periodically in WAL mode, so commits rarely
+ * have to, and prunes expired reply markers (see ReplyRetention).
+ *
+ */
+public class SQLiteDatabase {
+
+    /**
+     *
+     *  Default location of the db file. This will be relative to the
+     *  working directory of the botkernel we are running in.
+     */
+    private static final String DEFAULT_DB_FILE =
+                                            "../casinobots/scratch/bots.db";
+
+    private static String _dbFile = DEFAULT_DB_FILE;
+
+    //
+    // Settings applied to every connection. The first configure() wins,
+    // as all bots in the kernel share the one db file.
+    //
+    private static PersistenceProfile _profile = new PersistenceProfile();
+
+    private static boolean _configured = false;
+
+    private static ScheduledExecutorService _maintenance;
+
+    //
+    // Whether this process has brought the schema up to date yet.
+    //
+    private static boolean _migrated = false;
+
+    //
+    // The open connection for each thread which has touched the db.
+    //
+    private static final ThreadLocal<SQLiteConnection> CONNECTION =
+                                        new ThreadLocal<SQLiteConnection>();
+
+    //
+    // The open read-only connection for each thread which has read
+    // outside of a transaction.
+    //
+    private static final ThreadLocal<SQLiteConnection> READ_CONNECTION =
+                                        new ThreadLocal<SQLiteConnection>();
+
+    //
+    // Held for the duration of every write transaction. Fair, so a
+    // steady stream of writes from one thread cannot starve another.
+    //
+    private static final java.util.concurrent.locks.ReentrantLock WRITE_LOCK =
+                        new java.util.concurrent.locks.ReentrantLock(true);
+
+    /**
+     *
+     * Transaction state of one thread.
+     *
+     */
+    private static class Transaction {
+
+        // Nesting depth of begin() calls.
+        int depth = 0;
+
+        // Set when a nested part failed. The whole transaction will be
+        // rolled back by the outermost commit() or rollback().
+        boolean rollbackOnly = false;
+
+        // Run after the outermost commit succeeds.
+        List<Runnable> afterCommit = new ArrayList<Runnable>();
+
+        // Whether this thread holds WRITE_LOCK.
+        boolean writeLocked = false;
+
+        void reset() {
+            depth = 0;
+            rollbackOnly = false;
+            afterCommit.clear();
+            if(writeLocked) {
+                writeLocked = false;
+                WRITE_LOCK.unlock();
+            }
+        }
+    }
+
+    private static final ThreadLocal<Transaction> TRANSACTION =
+                                        new ThreadLocal<Transaction>() {
+        protected Transaction initialValue() {
+            return new Transaction();
+        }
+    };
+
+    /**
+     *
+     * Override the location of the db file.
+     *
+     * Only intended for tools (e.g. the benchmark) which do not run
+     * inside the botkernel. Connections already opened are not affected.
+     *
+     */
+    public static synchronized void setDatabaseFile(String filename) {
+        _dbFile = filename;
+    }
+
+    public static synchronized String getDatabaseFile() {
+        return _dbFile;
+    }
+
+    /**
+     *
+     * Set the performance profile from a bot's config properties.
+     *
+     * Must be called before the db is first used; connections already
+     * open keep their settings. Only the first call has any effect, so
+     * the bot initialized first decides for the whole kernel.
+     *
+     */
+    public static synchronized void configure(Properties props) {
+        if(_configured) {
+            return;
+        }
+        _configured = true;
+        _profile = new PersistenceProfile(props);
+
+        log("Database profile: " + _profile);
+
+        if(_profile.isWal() && _profile.getCheckpointSeconds() > 0) {
+            int seconds = _profile.getCheckpointSeconds();
+            schedule(new Runnable() {
+                public void run() {
+                    checkpoint();
+                }
+            }, seconds, seconds, TimeUnit.SECONDS);
+        }
+
+        if(_profile.getReplyRetentionDays() > 0) {
+            final int days = _profile.getReplyRetentionDays();
+            int minutes = Math.max(1, _profile.getRetentionMinutes());
+            schedule(new Runnable() {
+                public void run() {
+                    ReplyRetention.prune(days);
+                }
+            }, 1, minutes, TimeUnit.MINUTES);
+        }
+    }
+
+    public static synchronized PersistenceProfile getProfile() {
+        return _profile;
+    }
+
+    /**
+     *
+     * Return the open connection for the calling thread, opening
+     * it on first use.
+     *
+     */
+    public static SQLiteConnection getConnection() throws SQLiteException {
+
+        SQLiteConnection db = CONNECTION.get();
+        if(db != null && db.isOpen()) {
+            return db;
+        }
+
+        db = new SQLiteConnection(new File(getDatabaseFile()));
+        db.open(true);
+
+        try {
+            PersistenceProfile profile = getProfile();
+            profile.applyConnection(db);
+            migrate(db, profile);
+        } catch(SQLiteException se) {
+            db.dispose();
+            throw se;
+        }
+
+        CONNECTION.set(db);
+
+        return db;
+    }
+
+    /**
+     *
+     * Return the open read-only connection for the calling thread,
+     * opening it on first use.
+     *
+     */
+    public static SQLiteConnection getReadConnection() 
+                                                throws SQLiteException {
+
+        SQLiteConnection db = READ_CONNECTION.get();
+        if(db != null && db.isOpen()) {
+            return db;
+        }
+
+        //
+        // The schema has to be migrated, through a writable connection,
+        // before anything reads it.
+        //
+        if(!isMigrated()) {
+            getConnection();
+        }
+
+        db = new SQLiteConnection(new File(getDatabaseFile()));
+        db.openReadonly();
+
+        try {
+            getProfile().applyConnection(db);
+        } catch(SQLiteException se) {
+            db.dispose();
+            throw se;
+        }
+
+        READ_CONNECTION.set(db);
+
+        return db;
+    }
+
+    private static synchronized boolean isMigrated() {
+        return _migrated;
+    }
+
+    /**
+     *
+     * Set the journal mode and run any pending schema migrations,
+     * once per process.
+     *
+     */
+    private static synchronized void migrate(   SQLiteConnection db,
+                                                PersistenceProfile profile )
+                                                throws SQLiteException {
+        if(_migrated) {
+            return;
+        }
+        profile.applyDatabase(db);
+        SchemaMigrations.migrate(db);
+        _migrated = true;
+    }
+
+    /**
+     *
+     * Run a task periodically on the maintenance thread.
+     *
+     * Tasks share the one thread, and so its connection, and never run
+     * concurrently with each other.
+     *
+     */
+    private static synchronized void schedule(  Runnable task,
+                                                long delay,
+                                                long period,
+                                                TimeUnit unit ) {
+        if(_maintenance == null) {
+            _maintenance = Executors.newSingleThreadScheduledExecutor(
+                                                    new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "SQLiteMaintenance");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        _maintenance.scheduleWithFixedDelay(task, delay, period, unit);
+    }
+
+    /**
+     *
+     * Run one PASSIVE checkpoint on the calling thread's connection.
+     *
+     * A PASSIVE checkpoint copies whatever it can from the log into the
+     * db without waiting on readers or writers, so it never stalls the
+     * bots. Without it sqlite only checkpoints from inside a commit,
+     * once the log passes 1000 pages, which puts that cost on whichever
+     * bot happens to be writing.
+     *
+     */
+    public static void checkpoint() {
+        try {
+            SQLiteStatement st = getConnection().prepare(
+                                    "PRAGMA wal_checkpoint(PASSIVE)", true);
+            try {
+                if(st.step()) {
+                    //
+                    // Columns are busy, pages in the log, pages
+                    // checkpointed.
+                    //
+                    int logPages    = st.columnInt(1);
+                    int donePages   = st.columnInt(2);
+                    if(donePages < logPages) {
+                        log("WAL checkpoint incomplete, " + donePages +
+                                " of " + logPages + " pages.");
+                    }
+                }
+            } finally {
+                st.dispose();
+            }
+        } catch(SQLiteException se) {
+            handleError(se);
+        }
+    }
+
+    /**
+     *
+     * Prepare a statement on the calling thread's connection.
+     *
+     * The statement is cached by the connection. Callers must dispose()
+     * the statement when done, which returns it to the cache rather than
+     * finalizing it.
+     *
+     */
+    public static SQLiteStatement prepare(String sql) throws SQLiteException {
+        checkRollbackOnly();
+        return getConnection().prepare(sql, true);
+    }
+
+    /**
+     *
+     * Prepare a read-only statement.
+     *
+     * Outside a transaction it runs on the calling thread's read-only
+     * connection, and sees the latest committed data. Inside one it
+     * runs on the transaction's connection, so it sees the
+     * transaction's own changes. Callers must dispose() the statement
+     * when done, as with prepare().
+     *
+     */
+    public static SQLiteStatement prepareRead(String sql) 
+                                                throws SQLiteException {
+        if(inTransaction()) {
+            return prepare(sql);
+        }
+        return getReadConnection().prepare(sql, true);
+    }
+
+    /**
+     *
+     * Begin a write transaction on the calling thread's connection.
+     *
+     * Transactions nest: only the outermost begin() and commit() touch
+     * the database, so methods which need a transaction can be called
+     * from within a larger one. If a nested part fails, the whole
+     * transaction is rolled back once the outermost part ends, and
+     * everything in between fails fast. The write lock is taken up
+     * front (BEGIN IMMEDIATE) so a read inside the transaction can
+     * never be invalidated by another connection's write.
+     *
+     * Use as:
+     *
+     *      SQLiteDatabase.begin();
+     *      boolean committed = false;
+     *      try {
+     *          ...
+     *          SQLiteDatabase.commit();
+     *          committed = true;
+     *      } finally {
+     *          if(!committed) {
+     *              SQLiteDatabase.rollback();
+     *          }
+     *      }
+     *
+     */
+    public static void begin() throws SQLiteException {
+        checkRollbackOnly();
+        Transaction tx = TRANSACTION.get();
+        if(tx.depth == 0) {
+            long start = System.nanoTime();
+            WRITE_LOCK.lock();
+            PersistenceMetrics.addLockWait(System.nanoTime() - start);
+            tx.writeLocked = true;
+            try {
+                getConnection().exec("BEGIN IMMEDIATE");
+            } catch(SQLiteException se) {
+                tx.reset();
+                throw se;
+            }
+        }
+        tx.depth++;
+    }
+
+    /**
+     *
+     * Commit the calling thread's transaction, if this is the outermost
+     * begin(), and then run any afterCommit() tasks.
+     *
+     * @throws SQLiteException if the commit failed or the transaction
+     *          had been marked rollback only, in which case it has been
+     *          rolled back.
+     */
+    public static void commit() throws SQLiteException {
+        Transaction tx = TRANSACTION.get();
+        if(tx.depth == 0) {
+            throw new SQLiteException(SQLiteConstants.SQLITE_MISUSE,
+                                        "commit() without begin()");
+        }
+
+        tx.depth--;
+        if(tx.depth > 0) {
+            return;
+        }
+
+        if(tx.rollbackOnly) {
+            endTransaction("ROLLBACK");
+            throw new SQLiteException(SQLiteConstants.SQLITE_ABORT,
+                                        "Transaction rolled back");
+        }
+
+        List<Runnable> tasks = new ArrayList<Runnable>(tx.afterCommit);
+        endTransaction("COMMIT");
+
+        for(Runnable task: tasks) {
+            task.run();
+        }
+    }
+
+    /**
+     *
+     * Roll back the calling thread's transaction.
+     *
+     * Should be called from a finally block when commit() was not
+     * reached. A nested rollback marks the whole transaction as
+     * rollback only, as sqlite has no partial rollback without
+     * savepoints. The outermost rollback() undoes everything.
+     *
+     */
+    public static void rollback() {
+        Transaction tx = TRANSACTION.get();
+        if(tx.depth == 0) {
+            return;
+        }
+
+        tx.depth--;
+        tx.rollbackOnly = true;
+        if(tx.depth > 0) {
+            return;
+        }
+
+        try {
+            endTransaction("ROLLBACK");
+        } catch(SQLiteException se) {
+            handleError(se);
+        }
+    }
+
+    /**
+     *
+     * Run a task once the calling thread's transaction has committed,
+     * or right away if there is no transaction. Tasks are dropped if
+     * the transaction rolls back.
+     *
+     */
+    public static void afterCommit(Runnable task) {
+        Transaction tx = TRANSACTION.get();
+        if(tx.depth == 0) {
+            task.run();
+        } else {
+            tx.afterCommit.add(task);
+        }
+    }
+
+    /**
+     *
+     * Return true if the calling thread is inside begin().
+     *
+     */
+    public static boolean inTransaction() {
+        return TRANSACTION.get().depth > 0;
+    }
+
+    /**
+     *
+     * Finish the outermost transaction with COMMIT or ROLLBACK.
+     * On failure sqlite may have left a transaction open, so roll
+     * back and drop the connection. Either way the write lock is
+     * released.
+     *
+     */
+    private static void endTransaction(String sql) throws SQLiteException {
+        SQLiteConnection db = CONNECTION.get();
+        try {
+            if(db != null && !db.getAutoCommit()) {
+                db.exec(sql);
+            }
+        } catch(SQLiteException se) {
+            closeConnection();
+            throw se;
+        } finally {
+            TRANSACTION.get().reset();
+        }
+    }
+
+    private static void checkRollbackOnly() throws SQLiteException {
+        if(TRANSACTION.get().rollbackOnly) {
+            throw new SQLiteException(SQLiteConstants.SQLITE_ABORT,
+                                        "Transaction is rollback only");
+        }
+    }
+
+    /**
+     *
+     * Close the calling thread's connections, if any.
+     *
+     * Should be called after a database error so that the next call
+     * starts from a fresh connection, and by threads which are exiting.
+     *
+     */
+    public static void closeConnection() {
+        SQLiteConnection db = CONNECTION.get();
+        CONNECTION.remove();
+        TRANSACTION.get().reset();
+        if(db != null) {
+            db.dispose();
+        }
+
+        db = READ_CONNECTION.get();
+        READ_CONNECTION.remove();
+        if(db != null) {
+            db.dispose();
+        }
+    }
+
+    /**
+     *
+     * Log a database error.
+     *
+     * Outside a transaction, drop the calling thread's connection so the
+     * next call starts afresh. Inside one, mark it rollback only; the
+     * outermost commit() or rollback() will clean up.
+     *
+     */
+    public static void handleError(SQLiteException se) {
+        se.printStackTrace();
+        log("SEVERE error with database.");
+
+        Transaction tx = TRANSACTION.get();
+        if(tx.depth > 0) {
+            tx.rollbackOnly = true;
+        } else {
+            closeConnection();
+        }
+    }
+
+    /**
+     *
+     * Log to the botkernel, or to stderr when running outside of it
+     * (e.g. the benchmark).
+     *
+     */
+    public static void log(String message) {
+        BotKernel kernel = BotKernel.getBotKernel();
+        if(kernel != null) {
+            kernel.log(message);
+        } else {
+            System.err.println(message);
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+
+import com.almworks.sqlite4java.*;
+
+/**
+ *
+ * ReplyStore on the bot_replies table of bots.db.
+ *
+ * Replies are buffered by a ReplyWriter and written in batches. Until
+ * then they are answered from the writer's pending set. A reply set
+ * inside a caller's transaction is written straight away instead, so
+ * that it commits or rolls back with the rest of it.
+ *
+ * Rows are keyed by the bot's id in the NameDictionary.
+ *
+ */
+public class SQLiteReplyStore implements ReplyStore {
+
+    private final ReplyWriter _writer = new ReplyWriter();
+
+    public Boolean isReplied(String botName, String thingName) {
+
+        if(_writer.isPending(botName, thingName)) {
+            return Boolean.TRUE;
+        }
+
+        Boolean ret = null;
+        
+        try {
+
+            int botId = NameDictionary.getId(botName);
+            if(botId == -1) {
+                return Boolean.FALSE;
+            }
+
+            SQLiteStatement st = SQLiteDatabase.prepareRead(
+                "SELECT thing_name " +
+                " FROM bot_replies " +
+                " WHERE bot_id = ? AND thing_name = ?");
+
+            try {
+                st.bind(1, botId);
+                st.bind(2, thingName);
+                ret = Boolean.valueOf(st.step());
+            } finally {
+                st.dispose();
+            }
+
+        } catch(SQLiteException se) {
+            SQLiteDatabase.handleError(se);
+        }
+
+        return ret;
+    }
+
+    public void setReplied( String botName, 
+                            String thingName, 
+                            boolean permanent ) {
+
+        if(!SQLiteDatabase.inTransaction()) {
+            _writer.mark(botName, thingName, permanent);
+            return;
+        }
+
+        try {
+
+            int botId = NameDictionary.intern(botName);
+
+            SQLiteStatement st = SQLiteDatabase.prepare(
+                "INSERT OR IGNORE INTO bot_replies " +
+                " (bot_id, thing_name, replied_at, permanent) " +
+                " VALUES (?, ?, CAST(strftime('%s', 'now') AS INTEGER), ?)" );
+            try {
+                st.bind(1, botId);
+                st.bind(2, thingName);
+                st.bind(3, permanent ? 1 : 0);
+                st.step();
+            } finally {
+                st.dispose();
+            }
+
+        } catch(SQLiteException se) {
+            //
+            // Marks the transaction rollback only, so the caller's
+            // commit fails.
+            //
+            SQLiteDatabase.handleError(se);
+        }
+    }
+
+    public int countReplies(String botName) {
+
+        int ret = -1;
+
+        try {
+
+            int botId = NameDictionary.getId(botName);
+            if(botId == -1) {
+                return 0;
+            }
+
+            SQLiteStatement st = SQLiteDatabase.prepareRead(
+                "SELECT COUNT(*) " +
+                " FROM bot_replies " +
+                " WHERE bot_id = ?");
+            try {
+                st.bind(1, botId);
+                if(st.step()) {
+                    ret = st.columnInt(0);
+                }
+            } finally {
+                st.dispose();
+            }
+
+        } catch(SQLiteException se) {
+            SQLiteDatabase.handleError(se);
+        }
+
+        return ret;
+    }
+
+    /**
+     *
+     * Pending markers are listed first, so that any which are committed
+     * while the table is scanned are not missed.
+     *
+     */
+    public List<String> getReplies(String botName) {
+
+        List<String> ret = _writer.getPending(botName);
+
+        try {
+
+            int botId = NameDictionary.getId(botName);
+            if(botId == -1) {
+                return ret;
+            }
+
+            SQLiteStatement st = SQLiteDatabase.prepareRead(
+                "SELECT thing_name " +
+                " FROM bot_replies " +
+                " WHERE bot_id = ?");
+            try {
+                st.bind(1, botId);
+                while(st.step()) {
+                    ret.add(st.columnString(0));
+                }
+            } finally {
+                st.dispose();
+            }
+
+        } catch(SQLiteException se) {
+            SQLiteDatabase.handleError(se);
+            return null;
+        }
+
+        return ret;
+    }
+
+    public void flush() {
+        _writer.flush();
+    }
+
+}
@@ -0,0 +1,318 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+
+import com.almworks.sqlite4java.*;
+
+/**
+ *
+ * Versioned schema migrations for bots.db.
+ *
+ * bots.sql creates the original (version 0) schema. Each migration
+ * below upgrades the schema by one version, inside a transaction which
+ * also records the new version in the db header (PRAGMA user_version),
+ * so startup only runs the migrations an existing db has not had yet.
+ *
+ * To change the schema, append a migration with the next version
+ * number. Never edit a migration which has shipped.
+ *
+ */
+public class SchemaMigrations {
+
+    //
+    // First sqlite version supporting WITHOUT ROWID tables.
+    //
+    private static final int WITHOUT_ROWID_VERSION = 3008002;
+
+    /**
+     *
+     * A single schema upgrade.
+     *
+     */
+    private static abstract class Migration {
+
+        final int version;
+        final String description;
+
+        Migration(int version, String description) {
+            this.version = version;
+            this.description = description;
+        }
+
+        abstract void apply(SQLiteConnection db) throws SQLiteException;
+    }
+
+    private static final Migration[] MIGRATIONS = new Migration[] {
+
+        new Migration(1, "unique reply and bank keys, covering indexes") {
+            void apply(SQLiteConnection db) throws SQLiteException {
+
+                String withoutRowid =
+                    supportsWithoutRowid() ? " WITHOUT ROWID" : "";
+
+                //
+                // bot_replies: every lookup is by (bot_name, thing_name),
+                // so make that the primary key. Without a rowid the
+                // key is the table, and lookups are one b-tree search.
+                //
+                db.exec(
+                    "CREATE TABLE bot_replies_new " +
+                    "( " +
+                    "    bot_name    varchar(128) NOT NULL, " +
+                    "    thing_name  varchar(20)  NOT NULL, " +
+                    "    PRIMARY KEY (bot_name, thing_name) " +
+                    ")" + withoutRowid);
+                db.exec(
+                    "INSERT OR IGNORE INTO bot_replies_new " +
+                    " (bot_name, thing_name) " +
+                    " SELECT bot_name, thing_name FROM bot_replies " +
+                    " WHERE bot_name IS NOT NULL AND thing_name IS NOT NULL");
+                db.exec("DROP TABLE bot_replies");
+                db.exec("ALTER TABLE bot_replies_new RENAME TO bot_replies");
+
+                //
+                // bank: one row per player. Duplicate rows were possible
+                // before, keep the one getBankBalance() would have read.
+                //
+                db.exec(
+                    "CREATE TABLE bank_new " +
+                    "( " +
+                    "    player_name     varchar(128) NOT NULL PRIMARY KEY, " +
+                    "    balance         INTEGER NOT NULL " +
+                    ")" + withoutRowid);
+                db.exec(
+                    "INSERT OR IGNORE INTO bank_new (player_name, balance) " +
+                    " SELECT player_name, balance FROM bank " +
+                    " WHERE rowid IN " +
+                    "   (SELECT MIN(rowid) FROM bank GROUP BY player_name) " +
+                    " AND player_name IS NOT NULL AND balance IS NOT NULL");
+                db.exec("DROP TABLE bank");
+                db.exec("ALTER TABLE bank_new RENAME TO bank");
+
+                //
+                // Covering index for the leaderboard query.
+                //
+                db.exec(
+                    "CREATE INDEX bank_balance_index " +
+                    " ON bank (balance DESC, player_name)");
+            }
+        },
+
+        new Migration(2, "reply timestamps for retention") {
+            void apply(SQLiteConnection db) throws SQLiteException {
+
+                //
+                // Seconds since the epoch. Existing rows have no known
+                // age, so start their clock now: they are kept for one
+                // full retention window.
+                //
+                db.exec(
+                    "ALTER TABLE bot_replies " +
+                    " ADD COLUMN replied_at INTEGER NOT NULL DEFAULT 0");
+                db.exec(
+                    "UPDATE bot_replies " +
+                    " SET replied_at = CAST(strftime('%s', 'now') AS INTEGER)");
+
+                //
+                // So the retention pass finds expired rows without a
+                // table scan.
+                //
+                db.exec(
+                    "CREATE INDEX bot_replies_replied_at_index " +
+                    " ON bot_replies (replied_at)");
+            }
+        },
+
+        new Migration(3, "intern player and bot names") {
+            void apply(SQLiteConnection db) throws SQLiteException {
+
+                String withoutRowid =
+                    supportsWithoutRowid() ? " WITHOUT ROWID" : "";
+
+                //
+                // Every player and bot name, once. See NameDictionary.
+                //
+                db.exec(
+                    "CREATE TABLE names " +
+                    "( " +
+                    "    name_id     INTEGER PRIMARY KEY, " +
+                    "    name        varchar(128) NOT NULL UNIQUE " +
+                    ")");
+                db.exec(
+                    "INSERT OR IGNORE INTO names (name) " +
+                    " SELECT DISTINCT bot_name FROM bot_replies");
+                db.exec(
+                    "INSERT OR IGNORE INTO names (name) " +
+                    " SELECT player_name FROM bank");
+
+                //
+                // bot_replies: the bot name repeated on every row
+                // becomes an integer id.
+                //
+                db.exec(
+                    "CREATE TABLE bot_replies_new " +
+                    "( " +
+                    "    bot_id      INTEGER NOT NULL, " +
+                    "    thing_name  varchar(20)  NOT NULL, " +
+                    "    replied_at  INTEGER NOT NULL DEFAULT 0, " +
+                    "    PRIMARY KEY (bot_id, thing_name) " +
+                    ")" + withoutRowid);
+                db.exec(
+                    "INSERT INTO bot_replies_new " +
+                    " (bot_id, thing_name, replied_at) " +
+                    " SELECT n.name_id, r.thing_name, r.replied_at " +
+                    " FROM bot_replies r JOIN names n ON n.name = r.bot_name");
+                db.exec("DROP TABLE bot_replies");
+                db.exec("ALTER TABLE bot_replies_new RENAME TO bot_replies");
+                db.exec(
+                    "CREATE INDEX bot_replies_replied_at_index " +
+                    " ON bot_replies (replied_at)");
+
+                //
+                // bank: keyed by player id, which as an INTEGER PRIMARY
+                // KEY is the rowid itself.
+                //
+                db.exec(
+                    "CREATE TABLE bank_new " +
+                    "( " +
+                    "    player_id   INTEGER PRIMARY KEY, " +
+                    "    balance     INTEGER NOT NULL " +
+                    ")");
+                db.exec(
+                    "INSERT INTO bank_new (player_id, balance) " +
+                    " SELECT n.name_id, b.balance " +
+                    " FROM bank b JOIN names n ON n.name = b.player_name");
+                db.exec("DROP TABLE bank");
+                db.exec("ALTER TABLE bank_new RENAME TO bank");
+                db.exec(
+                    "CREATE INDEX bank_balance_index " +
+                    " ON bank (balance DESC, player_id)");
+            }
+        },
+
+        new Migration(4, "game sessions") {
+            void apply(SQLiteConnection db) throws SQLiteException {
+
+                //
+                // Game state of our game comments, keyed like
+                // bot_replies. See GameSessionStore.
+                //
+                db.exec(
+                    "CREATE TABLE game_sessions " +
+                    "( " +
+                    "    bot_id          INTEGER NOT NULL, " +
+                    "    thing_name      varchar(20) NOT NULL, " +
+                    "    player          varchar(128), " +
+                    "    bet             INTEGER NOT NULL, " +
+                    "    dealer_cards    varchar(64) NOT NULL, " +
+                    "    player_cards    varchar(64) NOT NULL, " +
+                    "    turn            INTEGER NOT NULL, " +
+                    "    finished        INTEGER NOT NULL, " +
+                    "    created_at      INTEGER NOT NULL, " +
+                    "    PRIMARY KEY (bot_id, thing_name) " +
+                    ")");
+                db.exec(
+                    "CREATE INDEX game_sessions_created_at_index " +
+                    " ON game_sessions (created_at)");
+            }
+        },
+
+        new Migration(5, "permanent reply markers") {
+            void apply(SQLiteConnection db) throws SQLiteException {
+
+                //
+                // Markers ReplyRetention must never expire: the turn
+                // markers of game comments. Which existing rows are
+                // turn markers is not known, so keep them all.
+                //
+                db.exec(
+                    "ALTER TABLE bot_replies " +
+                    " ADD COLUMN permanent INTEGER NOT NULL DEFAULT 0");
+                db.exec("UPDATE bot_replies SET permanent = 1");
+
+                //
+                // So the retention pass skips straight past permanent
+                // rows to the expired ones.
+                //
+                db.exec("DROP INDEX bot_replies_replied_at_index");
+                db.exec(
+                    "CREATE INDEX bot_replies_expiry_index " +
+                    " ON bot_replies (permanent, replied_at)");
+            }
+        },
+
+    };
+
+    /**
+     *
+     * Bring the db up to the latest schema version.
+     *
+     * @param db    An open connection.
+     *
+     */
+    public static void migrate(SQLiteConnection db) throws SQLiteException {
+
+        int version = getVersion(db);
+
+        for(Migration migration: MIGRATIONS) {
+
+            if(migration.version <= version) {
+                continue;
+            }
+
+            db.exec("BEGIN IMMEDIATE");
+            boolean committed = false;
+            try {
+
+                //
+                // Another process may have migrated while we waited
+                // for the write lock.
+                //
+                if(getVersion(db) < migration.version) {
+                    migration.apply(db);
+                    db.exec("PRAGMA user_version = " + migration.version);
+                }
+
+                db.exec("COMMIT");
+                committed = true;
+
+            } finally {
+                if(!committed) {
+                    try {
+                        db.exec("ROLLBACK");
+                    } catch(SQLiteException se) {
+                        // Keep the original exception.
+                    }
+                }
+            }
+
+            SQLiteDatabase.log(
+                "Applied schema migration " + migration.version +
+                ": " + migration.description);
+
+            version = migration.version;
+        }
+    }
+
+    /**
+     *
+     * Return the schema version recorded in the db.
+     *
+     */
+    public static int getVersion(SQLiteConnection db) throws SQLiteException {
+        SQLiteStatement st = db.prepare("PRAGMA user_version", false);
+        try {
+            if(st.step()) {
+                return st.columnInt(0);
+            }
+            return 0;
+        } finally {
+            st.dispose();
+        }
+    }
+
+    private static boolean supportsWithoutRowid() throws SQLiteException {
+        return SQLite.getSQLiteVersionNumber() >= WITHOUT_ROWID_VERSION;
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.jreddit.casinobots;
+
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+/**
+ *
+ * A fixed set of locks keyed by name.
+ *
+ * Each name hashes to one of the stripes, so callers working on
+ * different names rarely contend, while two callers working on the same
+ * name are always serialized. Time spent waiting for a stripe is
+ * recorded so that lock contention can be logged.
+ *
+ */
+public class StripedLock {
+
+    private final ReentrantLock[] _stripes;
+
+    //
+    // Contention stats
+    //
+    private final AtomicLong _acquisitions  = new AtomicLong();
+    private final AtomicLong _contended     = new AtomicLong();
+    private final AtomicLong _waitNanos     = new AtomicLong();
+    private final AtomicLong _maxWaitNanos  = new AtomicLong();
+
+    /**
+     * @param stripes   Number of locks. Rounded up to a power of two.
+     */
+    public StripedLock(int stripes) {
+        int n = 1;
+        while(n < stripes) {
+            n <<= 1;
+        }
+        _stripes = new ReentrantLock[n];
+        for(int i = 0; i < n; i++) {
+            _stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     *
+     * Acquire the lock for the given name, blocking if necessary.
+     *
+     * Must be paired with unlock() in a finally block.
+     *
+     */
+    public void lock(String name) {
+        ReentrantLock lock = stripe(name);
+        _acquisitions.incrementAndGet();
+
+        if(lock.tryLock()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        lock.lock();
+        long waited = System.nanoTime() - start;
+
+        _contended.incrementAndGet();
+        _waitNanos.addAndGet(waited);
+        long max = _maxWaitNanos.get();
+        while(waited > max && !_maxWaitNanos.compareAndSet(max, waited)) {
+            max = _maxWaitNanos.get();
+        }
+    }
+
+    /**
+     *
+     * Release the lock for the given name.
+     *
+     */
+    public void unlock(String name) {
+        stripe(name).unlock();
+    }
+
+    public long getAcquisitions()   { return _acquisitions.get(); }
+    public long getContended()      { return _contended.get(); }
+    public long getWaitNanos()      { return _waitNanos.get(); }
+    public long getMaxWaitNanos()   { return _maxWaitNanos.get(); }
+
+    /**
+     *
+     * One line summary of the lock wait stats, for logging.
+     *
+     */
+    public String getStats() {
+        return  "acquired " + getAcquisitions() +
+                ", contended " + getContended() +
+                ", wait total " + (getWaitNanos() / 1000000) + "ms" +
+                ", wait max " + (getMaxWaitNanos() / 1000000) + "ms";
+    }
+
+    private ReentrantLock stripe(String name) {
+        int h = (name == null) ? 0 : name.hashCode();
+        h ^= (h >>> 16);
+        return _stripes[h & (_stripes.length - 1)];
+    }
+
+}
@@ -0,0 +1,180 @@
+package com.jreddit.casinobots;
+
+import java.util.*;
+
+/**
+ *
+ * Set of reddit thing names, e.g. "t1_c8k2jq9", kept as longs.
+ *
+ * A thing name is a type prefix and a base 36 id, which packs into one
+ * long: the id shifted left four bits, or'd with the type digit. The
+ * longs are kept in an open addressing table, so a name costs 16 bytes
+ * at most instead of a String and a map entry. Names which do not fit
+ * that form are kept as Strings on the side.
+ *
+ * Not thread safe.
+ *
+ */
+public class ThingSet {
+
+    private static final int MIN_CAPACITY = 16;
+
+    //
+    // Longest base 36 id that still leaves room for the type digit.
+    //
+    private static final int MAX_ID_LENGTH = 10;
+
+    private static final long EMPTY = 0L;
+
+    private long[] _slots;
+    private int _size = 0;
+
+    private final Set<String> _others = new HashSet<String>();
+
+    public ThingSet() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     *
+     * @param expected  Number of names expected, to size the table.
+     *
+     */
+    public ThingSet(int expected) {
+        int capacity = MIN_CAPACITY;
+        while(capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        _slots = new long[capacity];
+    }
+
+    public boolean contains(String thingName) {
+        long key = encode(thingName);
+        if(key == EMPTY) {
+            return _others.contains(thingName);
+        }
+        return _slots[indexOf(key)] != EMPTY;
+    }
+
+    /**
+     *
+     * @return True if the name was not already in the set.
+     */
+    public boolean add(String thingName) {
+        long key = encode(thingName);
+        if(key == EMPTY) {
+            return _others.add(thingName);
+        }
+        int i = indexOf(key);
+        if(_slots[i] != EMPTY) {
+            return false;
+        }
+        _slots[i] = key;
+        _size++;
+        if(_size * 2 > _slots.length) {
+            grow();
+        }
+        return true;
+    }
+
+    public int size() {
+        return _size + _others.size();
+    }
+
+    /**
+     *
+     * Return the names in the set, in no particular order.
+     *
+     */
+    public List<String> getNames() {
+        List<String> ret = new ArrayList<String>(size());
+        for(int i = 0; i < _slots.length; i++) {
+            if(_slots[i] != EMPTY) {
+                ret.add(decode(_slots[i]));
+            }
+        }
+        ret.addAll(_others);
+        return ret;
+    }
+
+    /**
+     *
+     * Return the approximate number of bytes used, for logging.
+     *
+     */
+    public long getFootprint() {
+        return 8L * _slots.length + 64L * _others.size();
+    }
+
+    /**
+     *
+     * Pack "t<digit>_<id>" into a long.
+     *
+     * @return The packed name, or EMPTY if the name does not have that
+     *         form. Ids with a leading zero are not packed, so that
+     *         every packed name decodes back to the same string.
+     */
+    static long encode(String thingName) {
+
+        int len = thingName.length();
+        if( len < 4 || 
+            len > 3 + MAX_ID_LENGTH ||
+            thingName.charAt(0) != 't' ||
+            thingName.charAt(2) != '_' ||
+            thingName.charAt(3) == '0' ) {
+            return EMPTY;
+        }
+
+        int type = thingName.charAt(1) - '0';
+        if(type < 1 || type > 9) {
+            return EMPTY;
+        }
+
+        long id = 0;
+        for(int i = 3; i < len; i++) {
+            char c = thingName.charAt(i);
+            int digit;
+            if(c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if(c >= 'a' && c <= 'z') {
+                digit = c - 'a' + 10;
+            } else {
+                return EMPTY;
+            }
+            id = id * 36 + digit;
+        }
+
+        return (id << 4) | type;
+    }
+
+    static String decode(long key) {
+        return "t" + (key & 0xF) + "_" + Long.toString(key >>> 4, 36);
+    }
+
+    /**
+     *
+     * Return the slot holding the key, or the empty slot where it
+     * would go.
+     *
+     */
+    private int indexOf(long key) {
+        int mask = _slots.length - 1;
+        long h = key * 0x9E3779B97F4A7C15L;
+        int i = (int)(h >>> 32) & mask;
+        while(_slots[i] != EMPTY && _slots[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private void grow() {
+        long[] slots = _slots;
+        _slots = new long[slots.length * 2];
+        for(int i = 0; i < slots.length; i++) {
+            if(slots[i] != EMPTY) {
+                _slots[indexOf(slots[i])] = slots[i];
+            }
+        }
+    }
+
+}
@@ -39,6 +39,13 @@ public class VideopokerBot extends AbstractCasinoBot
 
     private PokerEngine _engine;
 
+    private final Random _random = new java.security.SecureRandom();
+
+    //
+    // Game state of our game comments.
+    //
+    private GameSessionStore _sessions;
+
     private Date _startTime;
 
     //
@@ -81,6 +88,8 @@ public class VideopokerBot extends AbstractCasinoBot
 
         _engine = new PokerEngine();
 
+        _sessions = new GameSessionStore(BOT_NAME);
+
         _startTime      = new Date();
 
         // Connect
@@ -214,6 +223,11 @@ public class VideopokerBot extends AbstractCasinoBot
         // Indicate to sleeping threads that we need to shut down.
         //
         _shutdown = true;
+
+        //
+        // Make sure buffered reply markers are on disk.
+        //
+        PersistenceUtils.flush();
     }
 
 
@@ -266,6 +280,12 @@ public class VideopokerBot extends AbstractCasinoBot
                 log("");
                 log("Games started: " + _gamesStarted );
                 log("Games played:  " + _gamesPlayed );
+                log("Player locks:  " + PersistenceUtils.getLockStats() );
+                log("Reply filter:  " + 
+                        PersistenceUtils.getReplyFilterStats(BOT_NAME) );
+                log("Balance cache: " + 
+                        PersistenceUtils.getBalanceCacheStats() );
+                log("Persistence:   " + PersistenceMetrics.getSummary() );
                 log("Running since: " + DATE_FORMAT.format(_startTime) );
                 log("Last activity: " + DATE_FORMAT.format(lastActivity) );
 
@@ -365,90 +385,96 @@ public class VideopokerBot extends AbstractCasinoBot
 
         log("Starting new poker game with user " + author + " bet " + bet);
 
-        Object dbLock = PersistenceUtils.getDatabaseLock();
-        synchronized(dbLock) {
-
-            boolean sufficientFunds = false;
-
-            int bal = PersistenceUtils.getBankBalance(author);
+        //
+        // Take the bet up front. The debit only happens if the player
+        // has enough credits.
+        //
+        boolean sufficientFunds = 
+            (PersistenceUtils.debitBankBalance( author, bet,
+                                                BOT_NAME, 
+                                                thing.getName() ) != -1);
 
-            if(bal >= bet) {
+        //
+        // The game, if it is to be played.
+        //
+        GameSession session = null;
 
-                //
-                // Create the player's hand
-                //
-                Hand hand = _engine.dealHand();
+        if(sufficientFunds) {
 
-                //
-                // Create message for player
-                //
-                message = createGameOutput( hand, author, bet);
-           
-                sufficientFunds = true;
+            //
+            // Create the player's hand
+            //
+            Hand hand = _engine.dealHand();
 
-            } else {
+            //
+            // Create message for player
+            //
+            message = createGameOutput( hand, author, bet);
 
-                sufficientFunds = false;
+            session = new GameSession(  author, bet, new String[0],
+                                        GameSession.toStrings(hand.getCards()),
+                                        0, false );
 
-                message = 
-                    "    You do not have sufficient funds to bet " + bet + 
-                    " credit(s).  \n" +
-                    "    Try betting fewer credits or try " +
-                    "\"bankerbot credits\" to be granted credits.  \n";
-            }
+        } else {
 
-            //
-            // Reply to player.
-            //
-            try {
+            message = 
+                "    You do not have sufficient funds to bet " + bet + 
+                " credit(s).  \n" +
+                "    Try betting fewer credits or try " +
+                "\"bankerbot credits\" to be granted credits.  \n";
+        }
 
-                if(sufficientFunds) {
-                    PersistenceUtils.setBankBalance(author, bal-bet);
-                }
+        //
+        // Reply to player.
+        //
+        try {
 
+            if(session != null) {
+                putSession(sendGameComment(thing, message, author), session);
+            } else {
                 sendComment(thing, message, author);
+            }
 
-                _gamesStarted++;
+            _gamesStarted++;
 
-            } catch(DeletedCommentException dce) {
+        } catch(DeletedCommentException dce) {
 
-                log("Ignoring deleted item... " + thing);
+            log("Ignoring deleted item... " + thing);
 
-            } catch(BannedUserException bue) {
+        } catch(BannedUserException bue) {
 
-                //
-                // This shouldn't happen as we should only be
-                // responding in the casino sub
-                //
-                String subreddit = thing.getSubreddit();
-                log("Banned from " + subreddit);
+            //
+            // This shouldn't happen as we should only be
+            // responding in the casino sub
+            //
+            String subreddit = thing.getSubreddit();
+            log("Banned from " + subreddit);
 
-            } catch(RateLimitException rle) {
+        } catch(RateLimitException rle) {
 
-                //
-                // TODO big todo....
-                //
-                // Handle a retry here....
-                
-                log("Caught RateLimitException: " + rle.getMessage());
+            //
+            // TODO big todo....
+            //
+            // Handle a retry here....
+            
+            log("Caught RateLimitException: " + rle.getMessage());
 
-                int sleepSecs = rle.getRetryTime();
+            int sleepSecs = rle.getRetryTime();
 
-                log("Sleeping " + sleepSecs +
-                    " seconds to recover from rate limit exception...");
+            log("Sleeping " + sleepSecs +
+                " seconds to recover from rate limit exception...");
 
-                sleep(sleepSecs);
-                return;
+            sleep(sleepSecs);
+            return;
 
-            } catch(IOException ioe) {
+        } catch(IOException ioe) {
 
-                ioe.printStackTrace(); 
+            ioe.printStackTrace(); 
 
-                //
-                // Some other error replying to comment...
-                //
-                log("ERROR replying to:\n" + thing);
-            }
+            //
+            // Some other error replying to comment...
+            //
+            log("ERROR replying to:\n" + thing);
         }
 
         //
@@ -470,6 +496,11 @@ public class VideopokerBot extends AbstractCasinoBot
      *
      */
     private void continueGames(List<Message> messages) throws IOException {
+
+        //
+        // Results of settled games we failed to send last time.
+        //
+        sendUnsentReplies();
         
         if(messages.size() == 0) {
             return;
@@ -555,27 +586,12 @@ public class VideopokerBot extends AbstractCasinoBot
                 continue;
             }
 
-            log("Getting parent comment to obtain game state.");
-
             //
             // Get game state
             //
-            Comment parent = Comments.getComment(_user, parentId);
-
-            if( parent == null ) {
-
-                //
-                // Can't parse game state. Nothing to do.
-                // Could maybe inform user that comment was deleted???
-                //
-
-                Messages.markAsRead(_user, message);
-                continue;
-            }
-         
-            String parentBody = parent.getBody();
+            GameSession session = getSession(parentId);
 
-            if( parentBody == null ) {
+            if( session == null ) {
 
                 //
                 // Can't parse game state. Nothing to do.
@@ -586,10 +602,7 @@ public class VideopokerBot extends AbstractCasinoBot
                 continue;
             }
 
-            log("Checking for finished game.");
-
-            if( parentBody != null &&
-                parentBody.indexOf("Game over.") != -1) {
+            if( session.isFinished() ) {
 
                 //
                 // This game is ended. Why are they still replying to us?
@@ -601,25 +614,8 @@ public class VideopokerBot extends AbstractCasinoBot
                 continue;
             }
 
-            String player = null;
-            int bet = -1;
-
-            log("Looking for player info.");
-
-            //
-            // Parse player and bet.
-            //
-            String pattern = "Player: (\\S+) bet: (\\d+) credit";
-            Pattern r = Pattern.compile(pattern);
-            Matcher m = r.matcher(parentBody);
-            if(m.find()) {
-                player = m.group(1);
-                try {
-                    bet = Integer.parseInt(m.group(2));
-                } catch( NumberFormatException nfe ) {
-                    // Not much to do here, check for -1 as bet later.
-                }
-            }
+            String player = session.getPlayer();
+            int bet = session.getBet();
 
             log("Found player and bet " + player + " " + bet);
 
@@ -627,7 +623,7 @@ public class VideopokerBot extends AbstractCasinoBot
                 // 
                 // We must not be playing a game for credits.
                 //
-                log("ERROR Playing game without credit bet:\n" + parentBody);
+                log("ERROR Playing game without credit bet for " + parentId);
                
                 Messages.markAsRead(_user, message);
                 continue;
@@ -640,7 +636,7 @@ public class VideopokerBot extends AbstractCasinoBot
                 // have not already played this turn.
                 //
              
-                if(PersistenceUtils.isBotReplied(BOT_NAME, parent.getName())) {
+                if(PersistenceUtils.isBotReplied(BOT_NAME, parentId)) {
                     log("Already played this turn for " + message);
                     Messages.markAsRead(_user, message);
                     continue;
@@ -655,12 +651,74 @@ public class VideopokerBot extends AbstractCasinoBot
                 }
             }
 
-            PokerHand playerHand = parseHand(parent.getBody());
+            PokerHand playerHand = toHand(session.getPlayerCards());
                                                     
             log("Playing poker game " + "(" + message.getSubreddit() + ")" );
             log("   " + playerHand);
 
-            pattern = "((x|o){5})";
+            if( body.equals("hint") ||
+                body.startsWith("hint") ) {
+
+                log("    Player asks for a hint.");
+
+                //
+                // Work out the expected value of every hold and reply
+                // with the best. The game carries on from our reply.
+                //
+                String[] strCards = session.getPlayerCards();
+                int[] cards = new int[strCards.length];
+                for(int i = 0; i < cards.length; i++) {
+                    cards[i] = Cards.parse(strCards[i]);
+                }
+
+                long start = System.currentTimeMillis();
+                double[] values = HoldAdvisor.getHoldValues(cards);
+                log("    Solved holds in " + 
+                    (System.currentTimeMillis() - start) + "ms");
+
+                int best = HoldAdvisor.getBestHold(values);
+
+                String output = createGameOutput(   playerHand, 
+                                                    player, 
+                                                    bet         );
+                output += "    ...  \n";
+                output += "    Best hold: " + HoldAdvisor.toCommand(best) +
+                            ", returns " + 
+                            String.format("%.4f", values[best]) + 
+                            " credit(s) per credit bet on average.  \n";
+                if(best != HoldAdvisor.HOLDS - 1) {
+                    output += "    Holding everything returns " +
+                            String.format("%.4f", values[HoldAdvisor.HOLDS - 1]) + 
+                            ".  \n";
+                }
+
+                try {
+
+                    putSession( sendGameComment(message, output, player), 
+                                session );
+                    PersistenceUtils.setTurnPlayed( BOT_NAME, parentId);
+                    PersistenceUtils.setBotReplied(BOT_NAME, message.getName());
+
+                } catch(DeletedCommentException dce) {
+
+                    log("Ignoring deleted comment... " + message);
+
+                } catch(BannedUserException bue) {
+         
+                    //
+                    // This shouldn't happen as we should only be
+                    // responding in the casino sub
+                    //
+                    String subreddit = message.getSubreddit();
+                    log("Banned from " + subreddit);
+
+                } 
+
+                Messages.markAsRead(_user, message);
+                continue;
+            }
+
+            String pattern = "((x|o){5})";
             Pattern regex = Pattern.compile(pattern);
             Matcher matcher = regex.matcher(body);
             
@@ -671,59 +729,44 @@ public class VideopokerBot extends AbstractCasinoBot
                 //
               
                 //
-                // Keep an exclude set of cards we have already dealt
-                // from the deck, so we do not deal them again.
+                // Every card already dealt from the deck, discards
+                // included, so we do not deal them again.
                 //
-                Hand exclude = new PokerHand();
-                Card[] cards = playerHand.getCards();
-                for(Card card: cards) {
-                    exclude.add(card);
-                }
+                String[] cards = session.getPlayerCards();
+                long dealt = Cards.toMask(cards);
 
                 //
-                // Remove the cards user wants to discard.
+                // Replace the cards user wants to discard.
                 //
                 String command = matcher.group(1);
                 for(int i = 0; i < 5; i++) {
-                    if(command.getBytes()[i] == 'x') {
+                    if(command.charAt(i) == 'x') {
                         // Debug
                         log("User keeps " + cards[i]);
                     } else {
-                        cards[i] = null;
-                    }
-                }
-
-                //
-                // Now deal any cards we have null'ed out.
-                // Keeping track of all the cards we need to exclude.
-                //
-                for(int i = 0; i < cards.length; i++) {
-                    if(cards[i] == null) {
-                        cards[i] = _engine.dealCard(exclude);
-                        exclude.add(cards[i]);
+                        int card = Cards.deal(dealt, _random);
+                        dealt |= Cards.mask(card);
+                        cards[i] = Cards.toString(card);
                     }
                 }
 
-                playerHand = new PokerHand( cards );
+                playerHand = toHand( cards );
 
                 String output = createGameOutput(   playerHand, 
                                                     player, 
                                                     bet     );
 
-                if(playerHand.isWinner()) {
-                    int multiplier = playerHand.getWinType();
+                int payout = 0;
+
+                int multiplier = PokerEvaluator.getMultiplier(
+                                                    Cards.toMask(cards));
+                if(multiplier > 0) {
                     output += "    ...  \n";
                     output += "    Game over. You win!  \n";
                     output += "    Payout " + 
                                     (bet*multiplier) + " credit(s)  \n";
 
-                    Object dbLock = PersistenceUtils.getDatabaseLock();
-                    synchronized(dbLock) {
-                        int bal = PersistenceUtils.getBankBalance(player);
-                        PersistenceUtils.setBankBalance(
-                                                    player, 
-                                                    bal + (bet*multiplier) );
-                    }
+                    payout = bet*multiplier;
 
                 } else {
 
@@ -731,11 +774,21 @@ public class VideopokerBot extends AbstractCasinoBot
                     output += "    Game over. You lose.  \n";
                 }
 
+                //
+                // Pay out and mark the turn played in one transaction,
+                // before replying, so the turn can never be paid twice.
+                // If it fails leave the message unread to retry later.
+                //
+                if(!PersistenceUtils.settleGame(BOT_NAME, player, payout,
+                                                parentId,
+                                                message.getName() )) {
+                    log("ERROR settling game for " + message);
+                    continue;
+                }
+
                 try {
                     
                     sendComment(message, output, player);
-                    PersistenceUtils.setBotReplied( BOT_NAME, parent.getName());
-                    PersistenceUtils.setBotReplied(BOT_NAME, message.getName());
                     _gamesPlayed++;
                 
                 } catch(DeletedCommentException dce) {
@@ -751,6 +804,15 @@ public class VideopokerBot extends AbstractCasinoBot
                     String subreddit = message.getSubreddit();
                     log("Banned from " + subreddit);
 
+                } catch(IOException ioe) {
+
+                    //
+                    // The game is settled, so playing the message again
+                    // is not an option. Keep the result to send later.
+                    //
+                    addUnsentReply( message, 
+                                    formatComment(output, player), ioe );
+                    _gamesPlayed++;
                 } 
 
                 //
@@ -780,13 +842,15 @@ public class VideopokerBot extends AbstractCasinoBot
             output += "    Sorry, I don't understand. " +
                 "    Send a string of five x's or o's next to eachother.  \n" +
                 "    Use x to indicate hold and y to indicate discard.  \n" +
-                "    E.g. xxxoo holds the first three cards.  \n";
+                "    E.g. xxxoo holds the first three cards.  \n" +
+                "    Or send hint for the best hold.  \n";
 
             
             try {
 
-                sendComment(message, output, player);
-                PersistenceUtils.setBotReplied( BOT_NAME, parent.getName());
+                putSession( sendGameComment(message, output, player), 
+                            session );
+                PersistenceUtils.setTurnPlayed( BOT_NAME, parentId);
                 PersistenceUtils.setBotReplied(BOT_NAME, message.getName());
 
             } catch(DeletedCommentException dce) {
@@ -816,6 +880,89 @@ public class VideopokerBot extends AbstractCasinoBot
 
     }
 
+    /**
+     *
+     * Return the game state of one of our game comments, from the
+     * session store, where it is kept when the comment is posted, or
+     * else by fetching the comment and parsing it. Finished games and
+     * comments whose name we did not learn are not in the store.
+     *
+     * @param parentId  The name of our game comment.
+     *
+     * @return The game state, or null if the comment is gone.
+     */
+    private GameSession getSession(String parentId) throws IOException {
+
+        GameSession session = _sessions.get(parentId);
+        if(session != null) {
+            log("Found game state in session store.");
+            return session;
+        }
+
+        log("Getting parent comment to obtain game state.");
+
+        Comment parent = Comments.getComment(_user, parentId);
+        if( parent == null || parent.getBody() == null ) {
+            return null;
+        }
+
+        String parentBody = parent.getBody();
+
+        String player = null;
+        int bet = -1;
+
+        log("Looking for player info.");
+
+        //
+        // Parse player and bet.
+        //
+        String pattern = "Player: (\\S+) bet: (\\d+) credit";
+        Pattern r = Pattern.compile(pattern);
+        Matcher m = r.matcher(parentBody);
+        if(m.find()) {
+            player = m.group(1);
+            try {
+                bet = Integer.parseInt(m.group(2));
+            } catch( NumberFormatException nfe ) {
+                // Not much to do here, check for -1 as bet later.
+            }
+        }
+
+        boolean finished = (parentBody.indexOf("Game over.") != -1);
+
+        //
+        // Only games for credits are played, don't try to parse
+        // anything else.
+        //
+        String[] cards = new String[0];
+        if( player != null && bet != -1 && !finished ) {
+            cards = GameSession.toStrings(parseHand(parentBody).getCards());
+        } else {
+            player = null;
+            bet = -1;
+        }
+
+        //
+        // The draw finishes the game, so there is only the one turn.
+        //
+        return new GameSession( player, bet, 
+                                new String[0], cards, 
+                                0, finished );
+    }
+
+    /**
+     *
+     * Rebuild a hand from the text of its cards.
+     *
+     */
+    private PokerHand toHand(String[] strCards) {
+        Card[] cards = new PokerCard[strCards.length];
+        for(int i = 0; i < strCards.length; i++) {
+            cards[i] = new PokerCard(strCards[i]);
+        }
+        return new PokerHand( cards );
+    }
+
     /**
      * @param text      Game text
      */
@@ -866,12 +1013,44 @@ public class VideopokerBot extends AbstractCasinoBot
      */
     private void sendComment(Thing thing, String text, String player) 
                                                     throws IOException {
+        Comments.comment(_user, thing, formatComment(text, player));
+    }
+
+    /**
+     * Send a game comment whose session is to be stored.
+     *
+     * @return The name of the comment, or null if it could not be
+     *         learned, see postGameComment().
+     */
+    private String sendGameComment( Thing thing, 
+                                    String text, 
+                                    String player ) throws IOException {
+        return postGameComment(thing, formatComment(text, player));
+    }
+
+    /**
+     *
+     * Keep the session of a game comment we posted, so replies to it
+     * can be played without fetching it.
+     *
+     * @param name  The name of the comment, or null if not known, in
+     *              which case replies fetch the comment.
+     *
+     */
+    private void putSession(String name, GameSession session) {
+        if(name != null) {
+            _sessions.put(name, session);
+        }
+    }
+
+    /**
+     * Return the text of a comment with the player's credits, if
+     * playing for credits, and the bot's signature appended.
+     */
+    private String formatComment(String text, String player) {
         int bal = -1; 
         if(player != null) { 
-            Object dbLock = PersistenceUtils.getDatabaseLock();
-            synchronized(dbLock) {
-                bal = PersistenceUtils.getBankBalance( player );
-            }
+            bal = PersistenceUtils.getBankBalance( player );
 
             if(bal > 0) {
                 text += "\n\n" +
@@ -888,11 +1067,11 @@ public class VideopokerBot extends AbstractCasinoBot
 
         text += "\n\n" +
                 "----\n" +
-                "Commands: (x|o)*5 | E.g. xxxxx or xxxoo or xoxox. Use x to hold, use o to discard. | " +
+                "Commands: (x|o)*5 | E.g. xxxxx or xxxoo or xoxox. Use x to hold, use o to discard. | hint | " +
                 "[Visit Casino](/r/RoboCasino) | " +
                 "[Contact My Human](http://www.reddit.com/message/compose/?to=BlackjackPitboss)    ";
 
-        Comments.comment(_user, thing, text);
+        return text;
     }
 
 